@@ -114,6 +114,19 @@ public class LinkedHashMap {
 		return m.value;
 	}
 
+	/**
+	 * Retrieve the map value corresponding to the given key without marking
+	 * it as recently used, so it can be called while iterating.
+	 *
+	 * @param key
+	 *            Key value
+	 * @return mapped value or null if the key is not in the map
+	 */
+	public Object peek(Object key) {
+		LinkedHashMapEntry m = (LinkedHashMapEntry) hashMap.get(key);
+		return m == null ? null : m.value;
+	}
+
 	/**
 	 * Set the mapped value for the given key to the given value.
 	 * 
@@ -123,11 +136,13 @@ public class LinkedHashMap {
 	 *            New mapped value
 	 */
 	public void put(Object key, Object value) {
+		// unlink a previous entry, otherwise it would stay in the chain
+		remove(key);
 		LinkedHashMapEntry m = new LinkedHashMapEntry(key, value);
 		linkEntry(m);
 		hashMap.put(key, m);
 
-		if (removeEldestEntry(head)) {
+		while (head != null && removeEldestEntry(head)) {
 			remove(head.key);
 		}
 
@@ -186,7 +201,8 @@ public class LinkedHashMap {
 
 	/**
 	 * This method is queried from the put and putAll methods to check if the
-	 * eldest member of the map should be deleted before adding the new member.
+	 * eldest member of the map should be deleted after adding the new member.
+	 * It is asked again for the next eldest member as long as it returns true.
 	 * If this map was created with accessOrder = true, then the result of
 	 * removeEldesrEntry is assumed to be false.
 	 * 
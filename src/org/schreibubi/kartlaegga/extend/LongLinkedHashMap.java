@@ -0,0 +1,303 @@
+/**
+ * Copyright (C) 2009 joerg <schreibubi@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.schreibubi.kartlaegga.extend;
+
+/**
+ * A map from primitive long keys to objects which keeps its entries in the
+ * order they were accessed, like {@link LinkedHashMap} used as an LRU cache.
+ * <p>
+ * Keys are stored in an open addressing table with linear probing, the access
+ * order is kept as links between the slots. Neither looking up nor adding an
+ * entry allocates anything unless the table has to grow, and keys are
+ * compared without boxing or hashing strings.
+ * <p>
+ * Null values are not allowed, an empty slot is marked by a null value. The
+ * entries can be walked from the eldest to the most recently used by slot
+ * with {@link #first()} and {@link #next(int)}, the map must not be modified
+ * meanwhile.
+ * 
+ * @author joerg
+ */
+public class LongLinkedHashMap {
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private long[] keys;
+
+	private Object[] values;
+
+	/**
+	 * The slot of the next older and next younger entry, or -1
+	 */
+	private int[] before, after;
+
+	private int head = -1, tail = -1;
+
+	private int size = 0;
+
+	private int mask;
+
+	/**
+	 * The number of bits to shift the mixed key to get the home slot
+	 */
+	private int shift;
+
+	public LongLinkedHashMap() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize
+	 *            the number of entries the map is sized for without growing
+	 */
+	public LongLinkedHashMap(int expectedSize) {
+		int capacity = 4;
+		while (capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new Object[capacity];
+		before = new int[capacity];
+		after = new int[capacity];
+		mask = capacity - 1;
+		shift = 64;
+		for (int c = capacity; c > 1; c >>= 1) {
+			shift--;
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private int home(long key) {
+		// Fibonacci hashing, the high bits of the product are well mixed
+		return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift) & mask;
+	}
+
+	private int find(long key) {
+		for (int i = home(key); values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Retrieve the value for the given key and mark it as the most recently
+	 * used.
+	 * 
+	 * @return the value or null if the key is not in the map
+	 */
+	public Object get(long key) {
+		int i = find(key);
+		if (i < 0) {
+			return null;
+		}
+		if (i != tail) {
+			unlink(i);
+			linkLast(i);
+		}
+		return values[i];
+	}
+
+	/**
+	 * Retrieve the value for the given key without changing the order.
+	 * 
+	 * @return the value or null if the key is not in the map
+	 */
+	public Object peek(long key) {
+		int i = find(key);
+		return i < 0 ? null : values[i];
+	}
+
+	public boolean containsKey(long key) {
+		return find(key) >= 0;
+	}
+
+	/**
+	 * Set the value for the given key and mark it as the most recently used.
+	 * Afterwards the eldest entries are removed as long as
+	 * {@link #removeEldestEntry(long, Object)} asks for it.
+	 * 
+	 * @throws NullPointerException
+	 *             if the value is null
+	 */
+	public void put(long key, Object value) {
+		if (value == null) {
+			throw new NullPointerException();
+		}
+		int i = find(key);
+		if (i >= 0) {
+			values[i] = value;
+			if (i != tail) {
+				unlink(i);
+				linkLast(i);
+			}
+		} else {
+			if ((size + 1) * 2 > keys.length) {
+				grow();
+			}
+			insert(key, value);
+		}
+		while (head >= 0 && removeEldestEntry(keys[head], values[head])) {
+			remove(keys[head]);
+		}
+	}
+
+	private void insert(long key, Object value) {
+		int i = home(key);
+		while (values[i] != null) {
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		values[i] = value;
+		linkLast(i);
+		size++;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		int[] oldAfter = after;
+		int oldHead = head;
+		allocate(keys.length * 2);
+		head = tail = -1;
+		size = 0;
+		for (int i = oldHead; i >= 0; i = oldAfter[i]) {
+			insert(oldKeys[i], oldValues[i]);
+		}
+	}
+
+	/**
+	 * Called by put for the eldest entry as long as it returns true.
+	 * 
+	 * @return true if the eldest entry should be removed
+	 */
+	protected boolean removeEldestEntry(long key, Object value) {
+		return false;
+	}
+
+	/**
+	 * Remove the entry of the given key.
+	 * 
+	 * @return the value associated with the key or null if the key was not in
+	 *         the map
+	 */
+	public Object remove(long key) {
+		int i = find(key);
+		if (i < 0) {
+			return null;
+		}
+		Object old = values[i];
+		unlink(i);
+		values[i] = null;
+		size--;
+		// shift the following entries of the cluster back into the hole
+		// unless they would end up before their home slot
+		for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+			int k = home(keys[j]);
+			boolean stays = i <= j ? (i < k && k <= j) : (i < k || k <= j);
+			if (!stays) {
+				move(j, i);
+				i = j;
+			}
+		}
+		return old;
+	}
+
+	private void move(int from, int to) {
+		keys[to] = keys[from];
+		values[to] = values[from];
+		values[from] = null;
+		int b = before[from];
+		int a = after[from];
+		before[to] = b;
+		after[to] = a;
+		if (b >= 0) {
+			after[b] = to;
+		} else {
+			head = to;
+		}
+		if (a >= 0) {
+			before[a] = to;
+		} else {
+			tail = to;
+		}
+	}
+
+	private void unlink(int i) {
+		int b = before[i];
+		int a = after[i];
+		if (b >= 0) {
+			after[b] = a;
+		} else {
+			head = a;
+		}
+		if (a >= 0) {
+			before[a] = b;
+		} else {
+			tail = b;
+		}
+	}
+
+	private void linkLast(int i) {
+		before[i] = tail;
+		after[i] = -1;
+		if (tail >= 0) {
+			after[tail] = i;
+		} else {
+			head = i;
+		}
+		tail = i;
+	}
+
+	public void clear() {
+		for (int i = 0; i < values.length; i++) {
+			values[i] = null;
+		}
+		head = tail = -1;
+		size = 0;
+	}
+
+	/**
+	 * @return the slot of the eldest entry, or -1 if the map is empty
+	 */
+	public int first() {
+		return head;
+	}
+
+	/**
+	 * @return the slot of the entry used after the one in the given slot, or
+	 *         -1 if it is the most recently used
+	 */
+	public int next(int slot) {
+		return after[slot];
+	}
+
+	public long keyAt(int slot) {
+		return keys[slot];
+	}
+
+	public Object valueAt(int slot) {
+		return values[slot];
+	}
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright (C) 2009 joerg <schreibubi@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.schreibubi.kartlaegga.mapviewer;
+
+import javax.microedition.location.Location;
+import javax.microedition.location.LocationListener;
+import javax.microedition.location.LocationProvider;
+
+/**
+ * Adjusts how often the location provider reports a fix to the speed and
+ * turning of the runner, by registering the listener of the provider again
+ * with a new interval.
+ * 
+ * The interval is chosen so that the runner moves about {@link #MAX_STEP}
+ * meters between two fixes, within {@link #MIN_INTERVAL} and
+ * {@link #MAX_INTERVAL} seconds. Standing still the longest interval is used.
+ * Measuring a curve by its chords shortens it by about a<sup>2</sup>/24 for
+ * a turn of a radians between two fixes, so the interval is shortened to keep
+ * turns below {@link #MAX_TURN} degrees per fix. This bounds the distance
+ * lost to sampling to about 1% in curves, straight stretches lose nothing,
+ * and a fix is at most about {@link #MAX_STEP} meters behind the runner.
+ * 
+ * A shorter interval is applied at once, a longer one only after it was
+ * asked for by {@link #SLOWDOWN_FIXES} fixes in a row, so a short stop does
+ * not thin out the track after it.
+ * 
+ * @author joerg
+ */
+public class AdaptiveSamplingController implements LocationListener {
+
+	/**
+	 * The shortest interval in seconds
+	 */
+	public static final int MIN_INTERVAL = 1;
+
+	/**
+	 * The longest interval in seconds, used when standing still
+	 */
+	public static final int MAX_INTERVAL = 10;
+
+	/**
+	 * The distance in meters the runner should move between two fixes
+	 */
+	public static final float MAX_STEP = 10;
+
+	/**
+	 * The largest change of course in degrees between two fixes
+	 */
+	public static final float MAX_TURN = 30;
+
+	/**
+	 * The slowest speed in m/s counted as moving
+	 */
+	public static final float MOVING_SPEED = 0.5f;
+
+	/**
+	 * The number of fixes which must ask for a longer interval before it is
+	 * used
+	 */
+	public static final int SLOWDOWN_FIXES = 3;
+
+	private final LocationProvider provider;
+
+	private final LocationListener listener;
+
+	/**
+	 * The interval registered with the provider, -1 for the default of the
+	 * provider
+	 */
+	private volatile int interval = -1;
+
+	private float lastCourse = Float.NaN;
+
+	private long lastTime = 0;
+
+	private int slowdownCount = 0;
+
+	/**
+	 * @param provider
+	 *            the provider whose interval is adjusted
+	 * @param listener
+	 *            the listener registered with the provider
+	 */
+	public AdaptiveSamplingController(LocationProvider provider,
+			LocationListener listener) {
+		this.provider = provider;
+		this.listener = listener;
+	}
+
+	/**
+	 * @return the interval in seconds the provider reports fixes with, -1 for
+	 *         its default
+	 */
+	public int getInterval() {
+		return interval;
+	}
+
+	public void locationUpdated(LocationProvider provider, Location location) {
+		if (!location.isValid()) {
+			return;
+		}
+		float speed = location.getSpeed();
+		float course = location.getCourse();
+		long time = location.getTimestamp();
+		if (Float.isNaN(speed)) {
+			return;
+		}
+		int wanted;
+		if (speed < MOVING_SPEED) {
+			wanted = MAX_INTERVAL;
+		} else {
+			float seconds = MAX_STEP / speed;
+			// the turn rate seen since the last fix, in degrees per second
+			if (!Float.isNaN(course) && !Float.isNaN(lastCourse)
+					&& time > lastTime) {
+				float turn = Math.abs(course - lastCourse);
+				if (turn > 180) {
+					turn = 360 - turn;
+				}
+				float rate = turn * 1000 / (time - lastTime);
+				if (rate * seconds > MAX_TURN) {
+					seconds = MAX_TURN / rate;
+				}
+			}
+			wanted = Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL,
+					(int) seconds));
+		}
+		lastCourse = speed < MOVING_SPEED ? Float.NaN : course;
+		lastTime = time;
+
+		if (interval != -1 && wanted > interval
+				&& ++slowdownCount < SLOWDOWN_FIXES) {
+			return;
+		}
+		slowdownCount = 0;
+		if (wanted != interval) {
+			setInterval(wanted);
+		}
+	}
+
+	private void setInterval(int seconds) {
+		try {
+			provider.setLocationListener(listener, seconds, -1, -1);
+			interval = seconds;
+		} catch (RuntimeException e) {
+			System.out.println("could not set location interval " + seconds
+					+ ": " + e);
+		}
+	}
+
+	public void providerStateChanged(LocationProvider provider, int newState) {
+	}
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2009 joerg <schreibubi@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.schreibubi.kartlaegga.mapviewer;
+
+/**
+ * A first-in first-out queue with a fixed capacity. Producers block while the
+ * queue is full, consumers block while it is empty.
+ *
+ * @author joerg
+ */
+public class BoundedQueue {
+
+	private Object[] elements;
+
+	private int head = 0;
+
+	private int size = 0;
+
+	private boolean closed = false;
+
+	/**
+	 * @param capacity
+	 *            the maximum number of queued elements
+	 * @throws IllegalArgumentException
+	 *             if the capacity is less than 1
+	 */
+	public BoundedQueue(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException();
+		}
+		elements = new Object[capacity];
+	}
+
+	/**
+	 * Appends an element, waiting for space to become available.
+	 *
+	 * @param o
+	 *            the element
+	 * @return false if the queue was closed or the thread interrupted, in
+	 *         which case the element was not added
+	 */
+	public synchronized boolean put(Object o) {
+		if (o == null) {
+			throw new NullPointerException();
+		}
+		while (size == elements.length && !closed) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+		if (closed) {
+			return false;
+		}
+		elements[(head + size) % elements.length] = o;
+		size++;
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Removes the oldest element, waiting for one to become available.
+	 *
+	 * @return the element, or null if the queue was closed or the thread
+	 *         interrupted
+	 */
+	public synchronized Object take() {
+		while (size == 0 && !closed) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				return null;
+			}
+		}
+		if (closed) {
+			return null;
+		}
+		Object o = elements[head];
+		elements[head] = null;
+		head = (head + 1) % elements.length;
+		size--;
+		notifyAll();
+		return o;
+	}
+
+	/**
+	 * @return the number of queued elements
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return the maximum number of queued elements
+	 */
+	public int capacity() {
+		return elements.length;
+	}
+
+	/**
+	 * Closes the queue, all waiting threads return immediately.
+	 */
+	public synchronized void close() {
+		closed = true;
+		for (int i = 0; i < elements.length; i++) {
+			elements[i] = null;
+		}
+		size = 0;
+		notifyAll();
+	}
+}
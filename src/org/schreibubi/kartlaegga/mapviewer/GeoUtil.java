@@ -35,6 +35,11 @@ import org.schreibubi.kartlaegga.mapviewer.tilefactories.TileFactoryInfo;
  * @author joshy
  */
 public final class GeoUtil {
+
+    /**
+     * The mean radius of the earth in meters
+     */
+    public static final double EARTH_RADIUS = 6371008.8;
         
     /**
      * @return the size of the map at the given zoom, in tiles (num tiles tall
@@ -97,6 +102,21 @@ public final class GeoUtil {
             double latitude, 
             double longitude,
             int zoomLevel, TileFactoryInfo info) {
+        return getBitmapCoordinate(latitude, longitude, zoomLevel, info,
+                new Point2D(0, 0));
+    }
+
+    /**
+     * Like {@link #getBitmapCoordinate(double, double, int, TileFactoryInfo)},
+     * but stores the result in the given point instead of allocating one.
+     * 
+     * @param out receives the coordinate
+     * @return out
+     */
+    public static Point2D getBitmapCoordinate(
+            double latitude, 
+            double longitude,
+            int zoomLevel, TileFactoryInfo info, Point2D out) {
         
         double x = info.getMapCenterInPixelsAtZoom(zoomLevel).getX() + longitude
                 * info.getLongitudeDegreeWidthInPixels(zoomLevel);
@@ -110,9 +130,33 @@ public final class GeoUtil {
         double y = info.getMapCenterInPixelsAtZoom(zoomLevel).getY() + 0.5
                 * Float11.log((1 + e) / (1 - e)) * -1
                 * (info.getLongitudeRadianWidthInPixels(zoomLevel));
-        return new Point2D(x, y);
+        out.x = x;
+        out.y = y;
+        return out;
     }
     
+
+    /**
+     * Returns the distance in meters between two positions using the
+     * equirectangular approximation: the difference in longitude is scaled
+     * by the cosine of the mean latitude and the positions are treated as
+     * points in a plane. This takes one cosine and one square root instead of
+     * the trigonometry of the haversine formula. For positions less than 10 km
+     * apart and below 80 degrees latitude the result differs from the great
+     * circle distance by less than 0.01%, far less than the error of a GPS fix.
+     */
+    public static double getDistance(double latitude1, double longitude1,
+            double latitude2, double longitude2) {
+        double dLongitude = longitude2 - longitude1;
+        if (dLongitude > 180) {
+            dLongitude -= 360;
+        } else if (dLongitude < -180) {
+            dLongitude += 360;
+        }
+        double x = dLongitude * Math.cos((latitude1 + latitude2) * (Math.PI / 360.0));
+        double y = latitude2 - latitude1;
+        return Math.sqrt(x * x + y * y) * (Math.PI / 180.0) * EARTH_RADIUS;
+    }
         
     // convert an on screen pixel coordinate and a zoom level to a
     // geo position
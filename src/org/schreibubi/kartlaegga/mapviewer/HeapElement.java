@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2009 joerg <schreibubi@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.schreibubi.kartlaegga.mapviewer;
+
+/**
+ * An element of a {@link PriorityQueue} which remembers its slot in the heap,
+ * so that it can be removed or reordered without searching for it.
+ *
+ * @author joerg
+ */
+public interface HeapElement {
+
+	/**
+	 * @return the slot of this element in the heap, or -1 if it is not queued
+	 */
+	public int getHeapIndex();
+
+	/**
+	 * Called by the queue whenever the element is moved.
+	 *
+	 * @param index
+	 *            the new slot, or -1 if the element was removed
+	 */
+	public void setHeapIndex(int index);
+}
@@ -17,7 +17,6 @@
 package org.schreibubi.kartlaegga.mapviewer;
 
 import java.io.IOException;
-import java.util.Vector;
 
 import org.schreibubi.kartlaegga.extend.Point2D;
 import org.schreibubi.kartlaegga.extend.Rectangle;
@@ -25,10 +24,12 @@ import org.schreibubi.kartlaegga.mapviewer.tilefactories.Tile;
 import org.schreibubi.kartlaegga.mapviewer.tilefactories.TileFactory;
 import org.schreibubi.kartlaegga.mapviewer.tilefactories.TileFactoryInfo;
 import org.schreibubi.kartlaegga.mapviewer.tilefactories.openstreetmap.OpenStreetMapMapnikTileFactory;
+import org.schreibubi.kartlaegga.mapviewer.track.ProjectedTrack;
 import org.schreibubi.kartlaegga.mapviewer.track.TrackListener;
-import org.schreibubi.kartlaegga.mapviewer.track.TrackPoint;
+import org.schreibubi.kartlaegga.mapviewer.track.TrackSnapshot;
 
 import com.sun.lwuit.Component;
+import com.sun.lwuit.Display;
 import com.sun.lwuit.Graphics;
 import com.sun.lwuit.Image;
 import com.sun.lwuit.plaf.Style;
@@ -62,7 +63,7 @@ import com.sun.lwuit.plaf.Style;
  */
 public class JXMapViewerLWUIT extends Component implements TrackListener {
 
-	private Vector track = null;
+	private TrackSnapshot track = null;
 	private final boolean isNegativeYAllowed = true;
 	/**
 	 * The zoom level. Generally a value between 1 and 15 (TODO Is this true for
@@ -80,6 +81,24 @@ public class JXMapViewerLWUIT extends Component implements TrackListener {
 	 */
 	private Point2D center = new Point2D(0, 0);
 
+	/**
+	 * Reused by {@link #followPosition(double, double)}
+	 */
+	private final Point2D followPoint = new Point2D(0, 0);
+
+	/**
+	 * Reused by {@link #setCenter(double, double)} and
+	 * {@link #publishViewport()}, the tile factory only reads the viewport
+	 */
+	private final Rectangle centerViewport = new Rectangle(0, 0, 0, 0);
+
+	private final Rectangle publishedViewport = new Rectangle(0, 0, 0, 0);
+
+	/**
+	 * Reused by the tile and track repaints, both run on the EDT
+	 */
+	private final Rectangle repaintViewport = new Rectangle(0, 0, 0, 0);
+
 	/**
 	 * Factory used by this component to grab the tiles necessary for painting
 	 * the map.
@@ -131,32 +150,175 @@ public class JXMapViewerLWUIT extends Component implements TrackListener {
 		doPaintComponent(g);
 	}
 
+	/**
+	 * Reused by paint, so that painting does not allocate anything
+	 */
+	private final Rectangle paintViewport = new Rectangle(0, 0, 0, 0);
+
 	// the method that does the actual painting
 	private void doPaintComponent(Graphics g) {
 		int zoom = getZoom();
-		Rectangle viewportBounds = getViewportBounds();
-		drawMapTiles(g, zoom, viewportBounds);
+		Rectangle viewportBounds = calculateViewportBounds(getCenter(),
+				paintViewport);
+		if (updateTileLayer(zoom, viewportBounds)) {
+			g.drawImage(layer, 0, 0);
+		} else {
+			drawMapTiles(g, zoom, viewportBounds);
+		}
 		if ((track != null) && (track.size() > 2)) {
-			g.setColor(0xff0000);
-			TrackPoint tp = (TrackPoint) track.elementAt(0);
-			Point2D p = convertGeoPositionToPoint(new GeoPosition(tp
-					.getLatitude(), tp.getLongitude()));
-			int xs = (int) p.getX();
-			int ys = (int) p.getY();
-			for (int i = 1; i < track.size(); i++) {
-				TrackPoint tq = (TrackPoint) track.elementAt(i);
-				Point2D q = convertGeoPositionToPoint(new GeoPosition(tq
-						.getLatitude(), tq.getLongitude()));
-				int x = (int) q.getX();
-				int y = (int) q.getY();
+			drawTrack(g, zoom, viewportBounds);
+		}
+		int xc = (int) (viewportBounds.width / 2 - (cursorImage.getWidth() - 1) / 2);
+		int yc = (int) (viewportBounds.height / 2 - (cursorImage.getHeight() - 1) / 2);
+		g.drawImage(cursorImage, xc, yc);
+	}
+
+	/**
+	 * The track projected to the world bitmap of the current tile factory
+	 */
+	private ProjectedTrack projectedTrack = null;
+
+	/**
+	 * Draws the track as a red line, translating the projected points by the
+	 * viewport offset. Only the chunks of the track intersecting the clip are
+	 * visited.
+	 */
+	private void drawTrack(Graphics g, int zoom, Rectangle viewportBounds) {
+		TileFactoryInfo info = getTileFactory().getInfo();
+		if (projectedTrack == null || projectedTrack.getInfo() != info) {
+			projectedTrack = new ProjectedTrack(info);
+		}
+		ProjectedTrack.Level level = projectedTrack.getLevel(track, zoom);
+		int vx = (int) viewportBounds.x;
+		int vy = (int) viewportBounds.y;
+		int x1 = g.getClipX() + vx;
+		int y1 = g.getClipY() + vy;
+		int x2 = x1 + g.getClipWidth();
+		int y2 = y1 + g.getClipHeight();
+		g.setColor(0xff0000);
+		int chunks = level.getChunkCount();
+		for (int c = 0; c < chunks; c++) {
+			if (!level.chunkIntersects(c, x1, y1, x2, y2)) {
+				continue;
+			}
+			int first = c * ProjectedTrack.CHUNK_SIZE;
+			int last = Math.min(first + ProjectedTrack.CHUNK_SIZE,
+					level.size() - 1);
+			int xs = level.getX(first) - vx;
+			int ys = level.getY(first) - vy;
+			for (int i = first + 1; i <= last; i++) {
+				int x = level.getX(i) - vx;
+				int y = level.getY(i) - vy;
 				g.drawLine(xs, ys, x, y);
 				xs = x;
 				ys = y;
 			}
 		}
-		int xc = (int) (viewportBounds.width / 2 - (cursorImage.getWidth() - 1) / 2);
-		int yc = (int) (viewportBounds.height / 2 - (cursorImage.getHeight() - 1) / 2);
-		g.drawImage(cursorImage, xc, yc);
+	}
+
+	/**
+	 * The tiles rendered offscreen, so that panning only has to draw the tiles
+	 * scrolled into view. The spare buffer receives the shifted pixels, as an
+	 * image cannot be drawn onto itself.
+	 */
+	private Image layer, spareLayer;
+
+	private Graphics layerGraphics, spareGraphics;
+
+	/**
+	 * What the layer shows: the top left corner of the viewport in pixels of
+	 * the world bitmap, the zoom level and the factory providing the tiles
+	 */
+	private int layerX, layerY, layerZoom;
+
+	private TileFactory layerFactory;
+
+	private boolean layerValid = false;
+
+	/**
+	 * Set if the area of the world bitmap below has to be drawn into the layer
+	 * again because tiles arrived there. Only used on the EDT.
+	 */
+	private boolean layerDirty = false;
+
+	private int layerDirtyX1, layerDirtyY1, layerDirtyX2, layerDirtyY2;
+
+	/**
+	 * Brings the tile layer up to date with the viewport. After a pan the
+	 * pixels still visible are shifted and only the strips which came into
+	 * view are drawn, a new zoom level, size or factory draws all tiles.
+	 * 
+	 * @return false if there is nothing to show
+	 */
+	private boolean updateTileLayer(int zoom, Rectangle viewportBounds) {
+		int w = (int) viewportBounds.width;
+		int h = (int) viewportBounds.height;
+		if (w <= 0 || h <= 0) {
+			return false;
+		}
+		int vx = (int) viewportBounds.x;
+		int vy = (int) viewportBounds.y;
+		if (layer == null || layer.getWidth() != w || layer.getHeight() != h) {
+			layer = Image.createImage(w, h);
+			spareLayer = Image.createImage(w, h);
+			layerGraphics = layer.getGraphics();
+			spareGraphics = spareLayer.getGraphics();
+			layerValid = false;
+		}
+		int dx = vx - layerX;
+		int dy = vy - layerY;
+		if (!layerValid || zoom != layerZoom || factory != layerFactory
+				|| Math.abs(dx) >= w || Math.abs(dy) >= h) {
+			drawLayer(layerGraphics, zoom, viewportBounds, 0, 0, w, h);
+			layerValid = true;
+			layerDirty = false;
+		} else if (dx != 0 || dy != 0) {
+			spareGraphics.setClip(0, 0, w, h);
+			spareGraphics.drawImage(layer, -dx, -dy);
+			if (dx > 0) {
+				drawLayer(spareGraphics, zoom, viewportBounds, w - dx, 0, dx, h);
+			} else if (dx < 0) {
+				drawLayer(spareGraphics, zoom, viewportBounds, 0, 0, -dx, h);
+			}
+			if (dy > 0) {
+				drawLayer(spareGraphics, zoom, viewportBounds, 0, h - dy, w, dy);
+			} else if (dy < 0) {
+				drawLayer(spareGraphics, zoom, viewportBounds, 0, 0, w, -dy);
+			}
+			Image i = layer;
+			layer = spareLayer;
+			spareLayer = i;
+			Graphics g = layerGraphics;
+			layerGraphics = spareGraphics;
+			spareGraphics = g;
+		}
+		if (layerDirty) {
+			layerDirty = false;
+			int x1 = Math.max(layerDirtyX1 - vx, 0);
+			int y1 = Math.max(layerDirtyY1 - vy, 0);
+			int x2 = Math.min(layerDirtyX2 - vx, w);
+			int y2 = Math.min(layerDirtyY2 - vy, h);
+			if (x1 < x2 && y1 < y2) {
+				drawLayer(layerGraphics, zoom, viewportBounds, x1, y1,
+						x2 - x1, y2 - y1);
+			}
+		}
+		layerX = vx;
+		layerY = vy;
+		layerZoom = zoom;
+		layerFactory = factory;
+		return true;
+	}
+
+	/**
+	 * Draws the tiles within the given area of the layer.
+	 */
+	private void drawLayer(Graphics lg, int zoom, Rectangle viewportBounds,
+			int x, int y, int w, int h) {
+		lg.setClip(x, y, w, h);
+		lg.setColor(getStyle().getBgColor());
+		lg.fillRect(x, y, w, h);
+		drawMapTiles(lg, zoom, viewportBounds);
 	}
 
 	/**
@@ -171,64 +333,58 @@ public class JXMapViewerLWUIT extends Component implements TrackListener {
 	 */
 	protected void drawMapTiles(final Graphics g, final int zoom,
 			Rectangle viewportBounds) {
-		int size = getTileFactory().getTileSize(zoom);
-		Dimension mapSize = getTileFactory().getMapSize(zoom);
-
-		// calculate the "visible" viewport area in tiles
-		int numWide = (int) viewportBounds.width / size + 2;
-		int numHigh = (int) viewportBounds.height / size + 2;
-
-		TileFactoryInfo info = getTileFactory().getInfo();
-		int tpx = (int) Math.floor(viewportBounds.getX()
-				/ info.getTileSize(zoom));
-		int tpy = (int) Math.floor(viewportBounds.getY()
-				/ info.getTileSize(zoom));
+		TileFactory tileFactory = getTileFactory();
+		int size = tileFactory.getTileSize(zoom);
+		int mapHeight = tileFactory.getInfo().getMapWidthInTilesAtZoom(zoom);
+		int vx = (int) viewportBounds.x;
+		int vy = (int) viewportBounds.y;
+
+		// the tiles intersecting the area being painted
+		int clipX = g.getClipX() + vx;
+		int clipY = g.getClipY() + vy;
+		int tx1 = floorDiv(clipX, size);
+		int ty1 = floorDiv(clipY, size);
+		int tx2 = floorDiv(clipX + g.getClipWidth() - 1, size);
+		int ty2 = floorDiv(clipY + g.getClipHeight() - 1, size);
+
+		Image loading = getLoadingImage();
+		int imageX = (size - loading.getWidth()) / 2;
+		int imageY = (size - loading.getHeight()) / 2;
 
 		// fetch the tiles from the factory and store them in the tiles cache
 		// attach the tileLoadListener
-		for (int x = 0; x <= numWide; x++) {
-			for (int y = 0; y <= numHigh; y++) {
-				int itpx = x + tpx;// topLeftTile.getX();
-				int itpy = y + tpy;// topLeftTile.getY();
-				// only proceed if the specified tile point lies within the area
-				// being painted
-				Rectangle clip = new Rectangle(g.getClipX(), g.getClipY(), g
-						.getClipWidth(), g.getClipHeight());
-				if (clip.intersects(new Rectangle(itpx * size
-						- viewportBounds.x, itpy * size - viewportBounds.y,
-						size, size))) {
-					Tile tile = getTileFactory().getTile(itpx, itpy, zoom);
-					tile.addUniquePropertyChangeListener(tileLoadListener);
-					int ox = (int) ((itpx * getTileFactory().getTileSize(zoom)) - viewportBounds.x);
-					int oy = (int) ((itpy * getTileFactory().getTileSize(zoom)) - viewportBounds.y);
-
-					// if the tile is off the map to the north/south, then just
-					// don't paint anything
-					if (isTileOnMap(itpx, itpy, mapSize)) {
-						// if (isOpaque()) {
-						// g.setColor(getBackground());
-						// g.fillRect(ox, oy, size, size);
-						// }
-					} else if (tile.isLoaded()) {
-						g.drawImage(tile.getImage(), ox, oy);
-					} else {
-						int imageX = (getTileFactory().getTileSize(zoom) - getLoadingImage()
-								.getWidth()) / 2;
-						int imageY = (getTileFactory().getTileSize(zoom) - getLoadingImage()
-								.getHeight()) / 2;
-						g.setColor(0x808080);
-						g.fillRect(ox, oy, size, size);
-						g
-								.drawImage(getLoadingImage(), ox + imageX, oy
-										+ imageY);
-					}
+		for (int itpx = tx1; itpx <= tx2; itpx++) {
+			for (int itpy = ty1; itpy <= ty2; itpy++) {
+				// if the tile is off the map to the north/south, then just
+				// don't paint anything
+				if (isTileOnMap(itpx, itpy, mapHeight)) {
+					continue;
+				}
+				Tile tile = tileFactory.getTile(itpx, itpy, zoom);
+				tile.addUniquePropertyChangeListener(tileLoadListener);
+				int ox = itpx * size - vx;
+				int oy = itpy * size - vy;
+				if (tile.isLoaded()) {
+					g.drawImage(tile.getImage(), ox, oy);
+				} else {
+					g.setColor(0x808080);
+					g.fillRect(ox, oy, size, size);
+					g.drawImage(loading, ox + imageX, oy + imageY);
 				}
 			}
 		}
 	}
 
-	private boolean isTileOnMap(int x, int y, Dimension mapSize) {
-		return !isNegativeYAllowed && y < 0 || y >= mapSize.getHeight();
+	/**
+	 * Division rounding towards negative infinity, for tiles left or above of
+	 * the map origin.
+	 */
+	private static int floorDiv(int a, int b) {
+		return a >= 0 ? a / b : -((-a - 1) / b) - 1;
+	}
+
+	private boolean isTileOnMap(int x, int y, int mapHeight) {
+		return !isNegativeYAllowed && y < 0 || y >= mapHeight;
 	}
 
 	/**
@@ -242,16 +398,29 @@ public class JXMapViewerLWUIT extends Component implements TrackListener {
 	}
 
 	private Rectangle calculateViewportBounds(Point2D center) {
+		return calculateViewportBounds(center, new Rectangle(0, 0, 0, 0));
+	}
+
+	/**
+	 * Stores the viewport around the given center in out and returns it.
+	 */
+	private Rectangle calculateViewportBounds(Point2D center, Rectangle out) {
+		return calculateViewportBounds(center.getX(), center.getY(), out);
+	}
+
+	private Rectangle calculateViewportBounds(double centerX, double centerY,
+			Rectangle out) {
 		// calculate the "visible" viewport area in pixels
 		Style style = getStyle();
 		int viewportWidth = getWidth() - style.getPadding(LEFT)
 				- style.getPadding(RIGHT);
 		int viewportHeight = getHeight() - style.getPadding(TOP)
 				- style.getPadding(BOTTOM);
-		double viewportX = (center.getX() - viewportWidth / 2);
-		double viewportY = (center.getY() - viewportHeight / 2);
-		return new Rectangle((int) viewportX, (int) viewportY, viewportWidth,
+		double viewportX = (centerX - viewportWidth / 2);
+		double viewportY = (centerY - viewportHeight / 2);
+		out.setBounds((int) viewportX, (int) viewportY, viewportWidth,
 				viewportHeight);
+		return out;
 	}
 
 	/**
@@ -285,6 +454,7 @@ public class JXMapViewerLWUIT extends Component implements TrackListener {
 				.getY()
 				* (mapSize.getHeight() / oldMapSize.getHeight()));
 		setCenter(newCenter);
+		publishViewport();
 	}
 
 	/**
@@ -328,6 +498,21 @@ public class JXMapViewerLWUIT extends Component implements TrackListener {
 		setCenter(getTileFactory().geoToPixel(getAddressLocation(), getZoom()));
 	}
 
+	/**
+	 * Centers the map on the position like {@link #setCenterPosition}, unless
+	 * it is less than a pixel away from the current center. Such a move would
+	 * repaint the map without visibly moving it.
+	 */
+	public void followPosition(double latitude, double longitude) {
+		GeoUtil.getBitmapCoordinate(latitude, longitude, zoom,
+				getTileFactory().getInfo(), followPoint);
+		if (Math.abs(followPoint.getX() - center.getX()) < 1
+				&& Math.abs(followPoint.getY() - center.getY()) < 1) {
+			return;
+		}
+		setCenter(followPoint.getX(), followPoint.getY());
+	}
+
 	/**
 	 * A property indicating the center position of the map
 	 * 
@@ -357,14 +542,30 @@ public class JXMapViewerLWUIT extends Component implements TrackListener {
 	}
 
 	/**
-	 * Set the current tile factory
+	 * Set the current tile factory. The previous factory is disposed, its
+	 * workers are stopped and its cache is saved.
 	 * 
 	 * @param factory
 	 *            the new property value
 	 */
 	public void setTileFactory(TileFactory factory) {
+		if (this.factory != null && this.factory != factory) {
+			this.factory.dispose();
+		}
 		this.factory = factory;
 		this.setZoom(factory.getInfo().getDefaultZoomLevel());
+		publishViewport();
+	}
+
+	/**
+	 * Releases the tile factory of this map. The map must not be painted
+	 * anymore afterwards.
+	 */
+	public void dispose() {
+		factory.dispose();
+		layer = spareLayer = null;
+		layerGraphics = spareGraphics = null;
+		layerValid = false;
 	}
 
 	/**
@@ -405,55 +606,65 @@ public class JXMapViewerLWUIT extends Component implements TrackListener {
 	 *            the new center of the map in pixel coordinates
 	 */
 	public void setCenter(Point2D center) {
-		if (!this.center.equals(center)) {
-			int viewportHeight = getHeight();
-			int viewportWidth = getWidth();
-
-			// don't let the user pan over the top edge
-			Rectangle newVP = calculateViewportBounds(center);
-			if (newVP.getY() < 0) {
-				double centerY = viewportHeight / 2;
-				center = new Point2D(center.getX(), centerY);
-			}
+		setCenter(center.getX(), center.getY());
+	}
 
-			// don't let the user pan over the left edge
-			if (newVP.getX() < 0) {
-				double centerX = viewportWidth / 2;
-				center = new Point2D(centerX, center.getY());
-			}
+	/**
+	 * Sets the new center of the map in pixel coordinates. The center point
+	 * is updated in place, so moving the map allocates nothing.
+	 */
+	public void setCenter(double centerX, double centerY) {
+		if (center.x == centerX && center.y == centerY) {
+			return;
+		}
+		int viewportHeight = getHeight();
+		int viewportWidth = getWidth();
+
+		// don't let the user pan over the top edge
+		Rectangle newVP = calculateViewportBounds(centerX, centerY,
+				centerViewport);
+		if (newVP.getY() < 0) {
+			centerY = viewportHeight / 2;
+		}
 
-			// don't let the user pan over the bottom edge
-			Dimension mapSize = getTileFactory().getMapSize(getZoom());
-			int mapHeight = (int) mapSize.getHeight()
-					* getTileFactory().getTileSize(getZoom());
-			if (newVP.getY() + newVP.getHeight() > mapHeight) {
-				double centerY = mapHeight - viewportHeight / 2;
-				center = new Point2D(center.getX(), centerY);
-			}
+		// don't let the user pan over the left edge
+		if (newVP.getX() < 0) {
+			centerX = viewportWidth / 2;
+		}
 
-			// don't let the user pan over the right edge
-			int mapWidth = (int) mapSize.getWidth()
-					* getTileFactory().getTileSize(getZoom());
-			if (newVP.getX() + newVP.getWidth() > mapWidth) {
-				double centerX = mapWidth - viewportWidth / 2;
-				center = new Point2D(centerX, center.getY());
-			}
+		// don't let the user pan over the bottom edge
+		int mapSize = getTileFactory().getInfo().getMapWidthInTilesAtZoom(
+				getZoom())
+				* getTileFactory().getTileSize(getZoom());
+		if (newVP.getY() + newVP.getHeight() > mapSize) {
+			centerY = mapSize - viewportHeight / 2;
+		}
 
-			// if map is to small then just center it vert
-			if (mapHeight < newVP.getHeight()) {
-				double centerY = mapHeight / 2;// viewportHeight/2;// -
-				// mapHeight/2;
-				center = new Point2D(center.getX(), centerY);
-			}
+		// don't let the user pan over the right edge
+		if (newVP.getX() + newVP.getWidth() > mapSize) {
+			centerX = mapSize - viewportWidth / 2;
+		}
 
-			// if map is too small then just center it horiz
-			if (mapWidth < newVP.getWidth()) {
-				double centerX = mapWidth / 2;
-				center = new Point2D(centerX, center.getY());
-			}
-			this.center = center;
-			repaint();
+		// if map is to small then just center it
+		if (mapSize < newVP.getHeight()) {
+			centerY = mapSize / 2;
 		}
+		if (mapSize < newVP.getWidth()) {
+			centerX = mapSize / 2;
+		}
+		center.x = centerX;
+		center.y = centerY;
+		publishViewport();
+		repaint();
+	}
+
+	/**
+	 * Tells the tile factory which part of the map is visible, so that it
+	 * loads the tiles in the center of the view first.
+	 */
+	private void publishViewport() {
+		getTileFactory().viewportChanged(
+				calculateViewportBounds(center, publishedViewport), getZoom());
 	}
 
 	/**
@@ -493,18 +704,113 @@ public class JXMapViewerLWUIT extends Component implements TrackListener {
 	// loading
 	private TileLoadListener tileLoadListener = new TileLoadListener();
 
+	/**
+	 * Set while a repaint for loaded tiles is waiting for the EDT
+	 */
+	private boolean repaintPending = false;
+
+	/**
+	 * The area in pixels of the world bitmap covered by the tiles loaded since
+	 * the pending repaint was scheduled, and their zoom level
+	 */
+	private int dirtyX1, dirtyY1, dirtyX2, dirtyY2, dirtyZoom;
+
+	/**
+	 * Repaints on the EDT the area of all tiles loaded since it was scheduled
+	 */
+	private final Runnable tileRepaint = new Runnable() {
+		public void run() {
+			int x1, y1, x2, y2, zoom;
+			synchronized (JXMapViewerLWUIT.this) {
+				repaintPending = false;
+				x1 = dirtyX1;
+				y1 = dirtyY1;
+				x2 = dirtyX2;
+				y2 = dirtyY2;
+				zoom = dirtyZoom;
+			}
+			if (zoom != getZoom()) {
+				return;
+			}
+			Rectangle vb = calculateViewportBounds(center, repaintViewport);
+			int vx = (int) vb.x;
+			int vy = (int) vb.y;
+			int mapWidth = getTileFactory().getInfo().getMapWidthInTilesAtZoom(
+					zoom)
+					* getTileFactory().getTileSize(zoom);
+			if (vx < 0 || vx + vb.width > mapWidth) {
+				// tiles are wrapped around, the area may show up twice
+				layerValid = false;
+				repaint();
+				return;
+			}
+			if (layerDirty) {
+				layerDirtyX1 = Math.min(layerDirtyX1, x1);
+				layerDirtyY1 = Math.min(layerDirtyY1, y1);
+				layerDirtyX2 = Math.max(layerDirtyX2, x2);
+				layerDirtyY2 = Math.max(layerDirtyY2, y2);
+			} else {
+				layerDirty = true;
+				layerDirtyX1 = x1;
+				layerDirtyY1 = y1;
+				layerDirtyX2 = x2;
+				layerDirtyY2 = y2;
+			}
+			x1 = Math.max(x1, vx) - vx;
+			y1 = Math.max(y1, vy) - vy;
+			x2 = Math.min(x2, vx + (int) vb.width) - vx;
+			y2 = Math.min(y2, vy + (int) vb.height) - vy;
+			if (x1 < x2 && y1 < y2) {
+				// the map is painted relative to its parent, like the tiles
+				repaint(getAbsoluteX() - getX() + x1, getAbsoluteY() - getY()
+						+ y1, x2 - x1, y2 - y1);
+			}
+		}
+	};
+
 	private final class TileLoadListener implements PropertyChangeListener {
 		public void propertyChange(PropertyChangeEvent evt) {
 			if ("loaded".equals(evt.getPropertyName())
 					&& Boolean.TRUE.equals(evt.getNewValue())) {
 				Tile t = (Tile) evt.getSource();
 				if (t.getZoom() == getZoom()) {
-					repaint();
+					scheduleTileRepaint(t);
 				}
 			}
 		}
 	}
 
+	/**
+	 * Repaints the area of a loaded tile, together with the overlays which
+	 * are drawn clipped to it. Tiles finishing in a burst are drawn with a
+	 * single repaint of the area covering all of them: only the first of them
+	 * schedules one, the others add to its area.
+	 */
+	private void scheduleTileRepaint(Tile t) {
+		int size = getTileFactory().getTileSize(t.getZoom());
+		int x1 = t.getX() * size;
+		int y1 = t.getY() * size;
+		synchronized (this) {
+			if (repaintPending && dirtyZoom == t.getZoom()) {
+				dirtyX1 = Math.min(dirtyX1, x1);
+				dirtyY1 = Math.min(dirtyY1, y1);
+				dirtyX2 = Math.max(dirtyX2, x1 + size);
+				dirtyY2 = Math.max(dirtyY2, y1 + size);
+				return;
+			}
+			dirtyX1 = x1;
+			dirtyY1 = y1;
+			dirtyX2 = x1 + size;
+			dirtyY2 = y1 + size;
+			dirtyZoom = t.getZoom();
+			if (repaintPending) {
+				return;
+			}
+			repaintPending = true;
+		}
+		Display.getInstance().callSerially(tileRepaint);
+	}
+
 	/**
 	 * Converts the specified GeoPosition to a point in the JXMapViewer's local
 	 * coordinate space. This method is especially useful when drawing lat/long
@@ -550,8 +856,109 @@ public class JXMapViewerLWUIT extends Component implements TrackListener {
 		return "MapViewer";
 	}
 
-	public void trackChanged(Vector track) {
-		System.out.println("Track changed in JXMap");
+	/**
+	 * The margin in pixels around appended fixes which is repainted, covering
+	 * the line width and the last projected point, which may lie up to
+	 * {@link ProjectedTrack#MIN_DISTANCE} pixels away from its fix
+	 */
+	private static final int TRACK_MARGIN = ProjectedTrack.MIN_DISTANCE + 1;
+
+	/**
+	 * Set while a repaint for appended fixes is waiting for the EDT
+	 */
+	private boolean trackRepaintPending = false;
+
+	/**
+	 * The area in pixels of the world bitmap covered by the fixes appended
+	 * since the pending repaint was scheduled, and its zoom level
+	 */
+	private int trackDirtyX1, trackDirtyY1, trackDirtyX2, trackDirtyY2,
+			trackDirtyZoom;
+
+	/**
+	 * Reused by {@link #pointsAppended(TrackSnapshot, int, int)}
+	 */
+	private final Point2D trackPoint = new Point2D(0, 0);
+
+	/**
+	 * Repaints on the EDT the area of the fixes appended since it was
+	 * scheduled
+	 */
+	private final Runnable trackRepaint = new Runnable() {
+		public void run() {
+			int x1, y1, x2, y2, zoom;
+			synchronized (JXMapViewerLWUIT.this) {
+				trackRepaintPending = false;
+				x1 = trackDirtyX1 - TRACK_MARGIN;
+				y1 = trackDirtyY1 - TRACK_MARGIN;
+				x2 = trackDirtyX2 + TRACK_MARGIN + 1;
+				y2 = trackDirtyY2 + TRACK_MARGIN + 1;
+				zoom = trackDirtyZoom;
+			}
+			if (zoom != getZoom()) {
+				repaint();
+				return;
+			}
+			Rectangle vb = calculateViewportBounds(center, repaintViewport);
+			int vx = (int) vb.x;
+			int vy = (int) vb.y;
+			x1 = Math.max(x1, vx) - vx;
+			y1 = Math.max(y1, vy) - vy;
+			x2 = Math.min(x2, vx + (int) vb.width) - vx;
+			y2 = Math.min(y2, vy + (int) vb.height) - vy;
+			if (x1 < x2 && y1 < y2) {
+				repaint(getAbsoluteX() - getX() + x1, getAbsoluteY() - getY()
+						+ y1, x2 - x1, y2 - y1);
+			}
+		}
+	};
+
+	/**
+	 * Repaints only the area of the new segments, from the last fix drawn
+	 * before to the newest one.
+	 */
+	public void pointsAppended(TrackSnapshot track, int from, int to) {
+		this.track = track;
+		int zoom = getZoom();
+		TileFactoryInfo info = getTileFactory().getInfo();
+		int x1 = Integer.MAX_VALUE, y1 = Integer.MAX_VALUE;
+		int x2 = Integer.MIN_VALUE, y2 = Integer.MIN_VALUE;
+		// the first segments only show up once there are three fixes
+		for (int i = from <= 3 ? 0 : from - 1; i < to; i++) {
+			GeoUtil.getBitmapCoordinate(track.getLatitude(i), track
+					.getLongitude(i), zoom, info, trackPoint);
+			int x = (int) trackPoint.x;
+			int y = (int) trackPoint.y;
+			x1 = Math.min(x1, x);
+			y1 = Math.min(y1, y);
+			x2 = Math.max(x2, x);
+			y2 = Math.max(y2, y);
+		}
+		if (x1 > x2) {
+			return;
+		}
+		synchronized (this) {
+			if (trackRepaintPending && trackDirtyZoom == zoom) {
+				trackDirtyX1 = Math.min(trackDirtyX1, x1);
+				trackDirtyY1 = Math.min(trackDirtyY1, y1);
+				trackDirtyX2 = Math.max(trackDirtyX2, x2);
+				trackDirtyY2 = Math.max(trackDirtyY2, y2);
+				return;
+			}
+			trackDirtyX1 = x1;
+			trackDirtyY1 = y1;
+			trackDirtyX2 = x2;
+			trackDirtyY2 = y2;
+			trackDirtyZoom = zoom;
+			if (trackRepaintPending) {
+				return;
+			}
+			trackRepaintPending = true;
+		}
+		Display.getInstance().callSerially(trackRepaint);
+	}
+
+	public void trackReset(TrackSnapshot track) {
 		this.track = track;
 		repaint();
 	}
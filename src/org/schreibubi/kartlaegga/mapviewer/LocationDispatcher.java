@@ -0,0 +1,183 @@
+/**
+ * Copyright (C) 2009 joerg <schreibubi@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.schreibubi.kartlaegga.mapviewer;
+
+import java.util.Vector;
+
+import javax.microedition.location.Location;
+import javax.microedition.location.LocationListener;
+import javax.microedition.location.LocationProvider;
+
+/**
+ * Passes the fixes of the location provider on to the registered listeners,
+ * each of which is called on a thread of its own. The provider thread only
+ * hands the fix over and returns, so a slow listener neither delays the next
+ * fix nor the other listeners.
+ * 
+ * A lossless listener gets every fix in order, like the track recorder. A
+ * lossy listener only gets the latest fix, fixes arriving while it is busy
+ * replace each other, which suits listeners only showing the position.
+ * 
+ * @author joerg
+ */
+public class LocationDispatcher implements LocationListener {
+
+	/**
+	 * The number of fixes a lossless listener may fall behind before the
+	 * oldest ones are dropped
+	 */
+	public static final int MAX_QUEUED = 512;
+
+	private final Vector channels = new Vector();
+
+	/**
+	 * Registers a listener, which is called on a new thread.
+	 * 
+	 * @param lossless
+	 *            true if the listener must get every fix, false if it only
+	 *            needs the latest one
+	 */
+	public void addLocationListener(LocationListener listener, boolean lossless) {
+		Channel c = new Channel(listener, lossless);
+		synchronized (channels) {
+			channels.addElement(c);
+		}
+		new Thread(c).start();
+	}
+
+	/**
+	 * Unregisters the listener, fixes not yet delivered are dropped.
+	 */
+	public void removeLocationListener(LocationListener listener) {
+		synchronized (channels) {
+			for (int i = 0; i < channels.size(); i++) {
+				Channel c = (Channel) channels.elementAt(i);
+				if (c.listener == listener) {
+					channels.removeElementAt(i);
+					c.stop();
+					return;
+				}
+			}
+		}
+	}
+
+	public void locationUpdated(LocationProvider provider, Location location) {
+		synchronized (channels) {
+			for (int i = 0; i < channels.size(); i++) {
+				((Channel) channels.elementAt(i)).offer(provider, location);
+			}
+		}
+	}
+
+	public void providerStateChanged(LocationProvider provider, int newState) {
+		Integer state = new Integer(newState);
+		synchronized (channels) {
+			for (int i = 0; i < channels.size(); i++) {
+				((Channel) channels.elementAt(i)).offer(provider, state);
+			}
+		}
+	}
+
+	/**
+	 * The events waiting for one listener and the thread delivering them.
+	 */
+	private static class Channel implements Runnable {
+
+		final LocationListener listener;
+
+		private final boolean lossless;
+
+		/**
+		 * Alternating providers and their fixes or states
+		 */
+		private final Vector queue = new Vector();
+
+		private int dropped = 0;
+
+		private boolean stopped = false;
+
+		Channel(LocationListener listener, boolean lossless) {
+			this.listener = listener;
+			this.lossless = lossless;
+		}
+
+		synchronized void offer(LocationProvider provider, Object event) {
+			if (stopped) {
+				return;
+			}
+			if (event instanceof Location) {
+				if (!lossless) {
+					// the older fix is stale now, state changes are kept
+					for (int i = 1; i < queue.size(); i += 2) {
+						if (queue.elementAt(i) instanceof Location) {
+							queue.setElementAt(event, i);
+							return;
+						}
+					}
+				} else if (queue.size() >= 2 * MAX_QUEUED) {
+					queue.removeElementAt(0);
+					queue.removeElementAt(0);
+					if (dropped++ == 0) {
+						System.out.println(listener
+								+ " falls behind, dropping fixes");
+					}
+				}
+			}
+			queue.addElement(provider);
+			queue.addElement(event);
+			notify();
+		}
+
+		synchronized void stop() {
+			stopped = true;
+			queue.removeAllElements();
+			notify();
+		}
+
+		public void run() {
+			while (true) {
+				LocationProvider provider;
+				Object event;
+				synchronized (this) {
+					while (queue.isEmpty() && !stopped) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+						}
+					}
+					if (stopped) {
+						return;
+					}
+					provider = (LocationProvider) queue.elementAt(0);
+					event = queue.elementAt(1);
+					queue.removeElementAt(0);
+					queue.removeElementAt(0);
+				}
+				try {
+					if (event instanceof Location) {
+						listener.locationUpdated(provider, (Location) event);
+					} else {
+						listener.providerStateChanged(provider,
+								((Integer) event).intValue());
+					}
+				} catch (Throwable e) {
+					// a failing listener must not stop its channel
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
@@ -15,7 +15,11 @@
  */
 package org.schreibubi.kartlaegga.mapviewer;
 
+import java.util.Calendar;
 import java.util.Date;
+import java.util.TimeZone;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import javax.microedition.location.Coordinates;
 import javax.microedition.location.Location;
@@ -24,7 +28,11 @@ import javax.microedition.location.LocationProvider;
 
 import org.schreibubi.kartlaegga.extend.Point2D;
 import org.schreibubi.kartlaegga.extend.Rectangle;
+import org.schreibubi.kartlaegga.mapviewer.track.LocationFilter;
+import org.schreibubi.kartlaegga.mapviewer.track.TrackJournal;
 import org.schreibubi.kartlaegga.mapviewer.track.TrackRecorder;
+import org.schreibubi.kartlaegga.mapviewer.track.TrackStore;
+import org.schreibubi.kartlaegga.mapviewer.track.WorkoutStatistics;
 
 import com.sun.lwuit.Command;
 import com.sun.lwuit.Container;
@@ -46,19 +54,89 @@ public class MapViewer extends Form implements LocationListener {
 
 	private static final Command backCommand = new Command("Back", BACK_COMMAND);
 
+	private static final int NEW_WORKOUT_COMMAND = 4;
+
+	private static final Command newWorkoutCommand = new Command(
+			"New workout", NEW_WORKOUT_COMMAND);
+
 	private Label lat = new Label("--------");
 	private Label lon = new Label("--------");
 	private Label height = new Label("----");
 	private Label speed = new Label("---");
 	private Label direction = new Label("---");
 	private Label timestamp=new Label("--------");
+	private Label distance = new Label("--.--km");
+	private Label duration = new Label("-:--:--");
+	private Label pace = new Label("-:--/km");
+	private Label averagePace = new Label("-:--/km");
+	private Label elevation = new Label("+- / --");
+	private Label split = new Label("-:--");
+	private Label fixes = new Label("0 fixes, 0 dropped");
 
 	private JXMapViewerLWUIT jxMapViewer = null;
 	private MapViewer myself=null;
+	private TrackRecorder trackRecorder = null;
+	private TrackJournal trackJournal = null;
+	private LocationFilter locationFilter = null;
+	private WorkoutStatistics statistics = new WorkoutStatistics();
+	private MyLocationProviderInterface locationProvider = null;
+	private boolean disposed = false;
+
+	/**
+	 * The offset of the local time to UTC in ms including daylight saving,
+	 * valid for the hour starting at timeZoneHour. Only used on the UI thread.
+	 */
+	private long timeZoneOffset = 0;
+
+	private long timeZoneHour = -1;
+
+	private final TimeZone timeZone = TimeZone.getDefault();
+
+	/**
+	 * In UTC, so that its fields can be set to the local standard time
+	 */
+	private final Calendar calendar = Calendar.getInstance(TimeZone
+			.getTimeZone("GMT"));
+
+	private static final int DEFAULT_UPDATE_RATE = 2;
+
+	/**
+	 * The most label updates and recenterings per second
+	 */
+	private volatile int maxUpdateRate = DEFAULT_UPDATE_RATE;
+
+	private volatile long lastUpdate = 0;
+
+	/**
+	 * The latest fix, to be shown by the next update
+	 */
+	private double fixLatitude, fixLongitude;
+	private float fixAltitude, fixSpeed, fixCourse;
+	private long fixTime;
+
+	private boolean updatePending = false;
+
+	private final Runnable updater = new Runnable() {
+		public void run() {
+			showFix();
+		}
+	};
+
+	/**
+	 * Hands the updates which are not due yet to the UI thread later,
+	 * cancelled when the view is left
+	 */
+	private final Timer updateTimer = new Timer();
+
+	/**
+	 * Reused for the label texts, only used on the UI thread
+	 */
+	private final StringBuffer text = new StringBuffer(32);
 	
 	public MapViewer(final MyLocationProviderInterface locationListener,
 			final PreviousMenuInterface parent) {
 		myself=this;
+		locationProvider = locationListener;
 		setLayout(new BoxLayout(BoxLayout.Y_AXIS));
 		jxMapViewer = new JXMapViewerLWUIT();
 		addComponent(jxMapViewer);
@@ -67,13 +145,18 @@ public class MapViewer extends Form implements LocationListener {
 				Command cmd = evt.getCommand();
 				switch (cmd.getId()) {
 				case BACK_COMMAND:
-					locationListener.removeLocationListener(myself);
+					dispose();
 					parent.switchToPreviousMenu();
 					break;
+				case NEW_WORKOUT_COMMAND:
+					// empties the journal and the statistics as well
+					trackRecorder.reset();
+					break;
 				}
 			}
 		});
 		addCommand(backCommand);
+		addCommand(newWorkoutCommand);
 		setScrollable(false);
 
 		//
@@ -85,41 +168,293 @@ public class MapViewer extends Form implements LocationListener {
 		gpsPanel.addComponent(speed);
 		gpsPanel.addComponent(direction);
 		gpsPanel.addComponent(timestamp);
+		gpsPanel.addComponent(distance);
+		gpsPanel.addComponent(duration);
+		gpsPanel.addComponent(pace);
+		gpsPanel.addComponent(averagePace);
+		gpsPanel.addComponent(elevation);
+		gpsPanel.addComponent(split);
+		gpsPanel.addComponent(fixes);
 		
 		addComponent(gpsPanel);
+		// continue the track of the last run if it ended in a crash
+		TrackStore store = new TrackStore();
+		String journalUrl = TrackJournal.getDefaultUrl();
+		if (journalUrl != null) {
+			try {
+				trackJournal = TrackJournal.open(journalUrl, store);
+			} catch (Exception e) {
+				System.out.println("no track journal: " + e);
+			}
+		}
+		trackRecorder = new TrackRecorder(store);
+		if (trackJournal != null) {
+			trackRecorder.addTrackListener(trackJournal);
+		}
+		trackRecorder.addTrackListener(jxMapViewer);
+		trackRecorder.addTrackListener(statistics);
+		jxMapViewer.trackReset(trackRecorder.getTrack());
+		statistics.trackReset(trackRecorder.getTrack());
+		locationFilter = new LocationFilter(trackRecorder);
+		locationListener.addLocationListener(locationFilter, true);
 		locationListener.addLocationListener(this);
-		TrackRecorder tr=new TrackRecorder();
-		locationListener.addLocationListener(tr);
-		tr.addTrackListener(jxMapViewer);
 
 		show();
 	}
 
+	/**
+	 * Stops listening to the location, closes the journal and releases the
+	 * map with its tile cache. Called when the view is left or the MIDlet
+	 * exits, later calls do nothing.
+	 */
+	public synchronized void dispose() {
+		if (disposed) {
+			return;
+		}
+		disposed = true;
+		locationProvider.removeLocationListener(this);
+		locationProvider.removeLocationListener(locationFilter);
+		if (trackJournal != null) {
+			trackJournal.close();
+		}
+		updateTimer.cancel();
+		jxMapViewer.dispose();
+	}
+
+	/**
+	 * Sets how often per second the labels may be updated and the map
+	 * recentered, fixes arriving faster are skipped.
+	 */
+	public void setMaxUpdateRate(int maxUpdateRate) {
+		this.maxUpdateRate = Math.max(1, maxUpdateRate);
+	}
+
 	/**
 	 * A method which is called by the location provider when the current
-	 * location is changed.
+	 * location is changed. The fix is only stored, an update on the UI thread
+	 * is scheduled for when the next one is due and shows the newest fix
+	 * stored by then. The calling thread never waits.
 	 */
-	public synchronized void locationUpdated(LocationProvider provider,
-			Location location) {
-		System.out.println("MapViewer location updated");
+	public void locationUpdated(LocationProvider provider, Location location) {
+		if (!location.isValid()) {
+			return;
+		}
 		Coordinates coordinates = location.getQualifiedCoordinates();
-		double latitude = coordinates.getLatitude();
-		double longitude = coordinates.getLongitude();
-		float altitude = coordinates.getAltitude();
-		float sp = location.getSpeed();
-		double course = location.getCourse();
-		long time=location.getTimestamp();
-		lat.setText(Coordinates.convert(latitude,Coordinates.DD_MM_SS));
-		lon.setText(Coordinates.convert(longitude,Coordinates.DD_MM_SS));
-		height.setText(altitude+"m");
-		speed.setText(sp*3.6+"km/h");
-		direction.setText(course+"°");
-		timestamp.setText(new Date(time).toString());
+		synchronized (this) {
+			fixLatitude = coordinates.getLatitude();
+			fixLongitude = coordinates.getLongitude();
+			fixAltitude = coordinates.getAltitude();
+			fixSpeed = location.getSpeed();
+			fixCourse = location.getCourse();
+			fixTime = location.getTimestamp();
+			if (updatePending) {
+				return;
+			}
+			updatePending = true;
+		}
+		long wait = lastUpdate + 1000 / maxUpdateRate
+				- System.currentTimeMillis();
+		if (wait <= 0) {
+			Display.getInstance().callSerially(updater);
+			return;
+		}
+		try {
+			updateTimer.schedule(new TimerTask() {
+				public void run() {
+					Display.getInstance().callSerially(updater);
+				}
+			}, wait);
+		} catch (IllegalStateException e) {
+			// the view was left meanwhile
+		}
+	}
+
+	/**
+	 * Shows the latest fix, called on the UI thread.
+	 */
+	private void showFix() {
+		double latitude, longitude;
+		float altitude, sp, course;
+		long time;
+		lastUpdate = System.currentTimeMillis();
+		synchronized (this) {
+			latitude = fixLatitude;
+			longitude = fixLongitude;
+			altitude = fixAltitude;
+			sp = fixSpeed;
+			course = fixCourse;
+			time = fixTime;
+			updatePending = false;
+		}
+		text.setLength(0);
+		appendAngle(latitude);
+		show(lat);
+		appendAngle(longitude);
+		show(lon);
+		if (!Float.isNaN(altitude)) {
+			appendNumber((int) altitude, 1);
+			text.append('m');
+			show(height);
+		}
+		if (!Float.isNaN(sp)) {
+			int tenths = (int) (sp * 36 + 0.5f);
+			appendNumber(tenths / 10, 1);
+			text.append('.');
+			appendNumber(tenths % 10, 1);
+			text.append("km/h");
+			show(speed);
+		}
+		if (!Float.isNaN(course)) {
+			appendNumber((int) course, 1);
+			text.append('\u00b0');
+			show(direction);
+		}
+		appendTime((int) ((time + getTimeZoneOffset(time)) / 1000 % (24 * 3600)));
+		show(timestamp);
+		showStatistics();
 		if (tracking) {
-			GeoPosition gp = new GeoPosition(latitude, longitude);
-			jxMapViewer.setCenterPosition(gp);
+			jxMapViewer.followPosition(latitude, longitude);
 		}
+	}
 
+	private void showStatistics() {
+		int meters = (int) statistics.getDistance();
+		appendNumber(meters / 1000, 1);
+		text.append('.');
+		appendNumber(meters % 1000 / 10, 2);
+		text.append("km");
+		show(distance);
+		appendTime((int) (statistics.getMovingTime() / 1000));
+		show(duration);
+		appendPace(statistics.getCurrentPace());
+		text.append("/km");
+		show(pace);
+		appendPace(statistics.getAveragePace());
+		text.append("/km");
+		show(averagePace);
+		text.append('+');
+		appendNumber((int) statistics.getElevationGain(), 1);
+		text.append(" / -");
+		appendNumber((int) statistics.getElevationLoss(), 1);
+		text.append('m');
+		show(elevation);
+		int splits = statistics.getSplitCount();
+		if (splits > 0) {
+			appendNumber(splits, 1);
+			text.append("km ");
+			appendPace((int) (statistics.getSplitTime(splits - 1) / 1000));
+			show(split);
+		}
+		appendNumber(locationFilter.getPassed(), 1);
+		text.append(" fixes, ");
+		appendNumber(locationFilter.getDropped(), 1);
+		text.append(" dropped");
+		show(fixes);
+	}
+
+	/**
+	 * @return the offset of the local time to UTC at the given time. It is
+	 *         looked up again every hour, so a change of daylight saving
+	 *         shows up within the hour.
+	 */
+	private long getTimeZoneOffset(long time) {
+		long hour = time / (3600 * 1000);
+		if (hour != timeZoneHour) {
+			// getOffset expects the local standard time, without daylight
+			// saving
+			calendar.setTime(new Date(time + timeZone.getRawOffset()));
+			int millis = ((calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar
+					.get(Calendar.MINUTE)) * 60 + calendar.get(Calendar.SECOND))
+					* 1000 + calendar.get(Calendar.MILLISECOND);
+			// era 1 is AD
+			timeZoneOffset = timeZone.getOffset(1,
+					calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH),
+					calendar.get(Calendar.DAY_OF_MONTH),
+					calendar.get(Calendar.DAY_OF_WEEK), millis);
+			timeZoneHour = hour;
+		}
+		return timeZoneOffset;
+	}
+
+	/**
+	 * Moves the text of the buffer to the label and empties the buffer. The
+	 * label is left alone if the text did not change, which saves the layout
+	 * and repaint.
+	 */
+	private void show(Label label) {
+		String old = label.getText();
+		boolean same = old != null && old.length() == text.length();
+		for (int i = 0; same && i < old.length(); i++) {
+			same = old.charAt(i) == text.charAt(i);
+		}
+		if (!same) {
+			label.setText(text.toString());
+		}
+		text.setLength(0);
+	}
+
+	/**
+	 * Appends the angle as degrees, minutes and seconds with two decimals.
+	 */
+	private void appendAngle(double degrees) {
+		if (degrees < 0) {
+			text.append('-');
+			degrees = -degrees;
+		}
+		int hundredths = (int) (degrees * 360000 + 0.5);
+		appendNumber(hundredths / 360000, 1);
+		text.append(':');
+		appendNumber(hundredths / 6000 % 60, 2);
+		text.append(':');
+		appendNumber(hundredths / 100 % 60, 2);
+		text.append('.');
+		appendNumber(hundredths % 100, 2);
+	}
+
+	/**
+	 * Appends the seconds as hours, minutes and seconds.
+	 */
+	private void appendTime(int seconds) {
+		appendNumber(seconds / 3600, 1);
+		text.append(':');
+		appendNumber(seconds / 60 % 60, 2);
+		text.append(':');
+		appendNumber(seconds % 60, 2);
+	}
+
+	/**
+	 * Appends the seconds as minutes and seconds, dashes for 0.
+	 */
+	private void appendPace(int seconds) {
+		if (seconds == 0) {
+			text.append("-:--");
+		} else {
+			appendNumber(seconds / 60, 1);
+			text.append(':');
+			appendNumber(seconds % 60, 2);
+		}
+	}
+
+	/**
+	 * Appends a number padded with zeros to the given number of digits,
+	 * without creating a string for it.
+	 */
+	private void appendNumber(int n, int digits) {
+		if (n < 0) {
+			text.append('-');
+			n = -n;
+		}
+		int start = text.length();
+		do {
+			text.append((char) ('0' + n % 10));
+			n /= 10;
+		} while (n > 0 || text.length() - start < digits);
+		// the digits were appended lowest first
+		for (int i = start, j = text.length() - 1; i < j; i++, j--) {
+			char c = text.charAt(i);
+			text.setCharAt(i, text.charAt(j));
+			text.setCharAt(j, c);
+		}
 	}
 
 	/**
@@ -188,9 +523,6 @@ public class MapViewer extends Form implements LocationListener {
 			Rectangle bounds = jxMapViewer.getViewportBounds();
 			double x = bounds.getCenterX() + delta_x;
 			double y = bounds.getCenterY() + delta_y;
-			System.out.println("Old x/y " + bounds.getCenterX() + "/"
-					+ bounds.getCenterY() + " new x/y " + x + "/" + y);
-
 			jxMapViewer.setCenter(new Point2D(x, y));
 		}
 	}
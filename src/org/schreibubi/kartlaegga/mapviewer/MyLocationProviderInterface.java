@@ -19,8 +19,21 @@ import javax.microedition.location.LocationListener;
 
 public interface MyLocationProviderInterface {
 
+	/**
+	 * Registers a listener which only needs the latest fix.
+	 */
 	public abstract void addLocationListener(LocationListener listener);
 
+	/**
+	 * Registers a listener, which is called on a thread of its own.
+	 * 
+	 * @param lossless
+	 *            true if the listener must get every fix, false if fixes
+	 *            arriving while it is busy may be replaced by newer ones
+	 */
+	public abstract void addLocationListener(LocationListener listener,
+			boolean lossless);
+
 	public abstract void removeLocationListener(LocationListener listener);
 
 }
\ No newline at end of file
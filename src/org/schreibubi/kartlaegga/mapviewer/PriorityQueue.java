@@ -26,18 +26,41 @@ import org.schreibubi.kartlaegga.extend.Comparator;
  * The least element of the specified ordering is stored at the head of the
  * queue and the greatest element is stored at the tail of the queue.
  * 
- * PriorityQueue is not synchronized. If multiple threads will access it
- * concurrently, use the PriorityBlockingQueue.
+ * Every element knows its slot in the heap (see {@link HeapElement}), so
+ * removing an element or reordering it after its priority changed costs
+ * O(log n) instead of a linear search.
+ * 
+ * All operations are synchronized. {@link #poll()} blocks until an element is
+ * available or the queue is closed.
  */
 public class PriorityQueue {
 
+	/**
+	 * Recomputes the priority of a queued element, see
+	 * {@link PriorityQueue#reorder(Prioritizer)}.
+	 */
+	public interface Prioritizer {
+		/**
+		 * @return false if the element should be dropped from the queue
+		 */
+		public boolean prioritize(HeapElement o);
+	}
+
 	private static final int DEFAULT_CAPACITY_RATIO = 2;
 
 	private int size;
 
 	private Comparator comparator;
 
-	private transient Object[] elements;
+	private transient HeapElement[] elements;
+
+	/**
+	 * Monitor for all queue operations. The element array itself cannot be
+	 * used, as it is replaced whenever the queue grows.
+	 */
+	private final Object lock = new Object();
+
+	private boolean closed = false;
 
 	/**
 	 * Constructs a priority queue with specified capacity and comparator.
@@ -72,9 +95,11 @@ public class PriorityQueue {
 	 * Removes all the elements of the priority queue.
 	 */
 	public void clear() {
-		synchronized (elements) {
-			for (int i = 0; i < size; i++)
+		synchronized (lock) {
+			for (int i = 0; i < size; i++) {
+				elements[i].setHeapIndex(-1);
 				elements[i] = null;
+			}
 			size = 0;
 		}
 	}
@@ -82,38 +107,48 @@ public class PriorityQueue {
 	/**
 	 * Inserts the element to the priority queue.
 	 * 
-	 * @return true
+	 * @return true, or false if the element is already queued
 	 * @throws ClassCastException
 	 *             if the element cannot be compared with the elements in the
 	 *             priority queue using the ordering of the priority queue.
 	 * @throws NullPointerException
 	 *             if the element is null.
 	 */
-	public boolean add(Object o) {
+	public boolean add(HeapElement o) {
 		if (null == o) {
 			throw new NullPointerException();
 		}
-		synchronized (elements) {
+		synchronized (lock) {
+			if (indexOf(o) >= 0) {
+				return false;
+			}
 			growToSize(size + 1);
 			elements[size] = o;
 			siftUp(size++);
-			elements.notify();
+			lock.notify();
 		}
 		return true;
 	}
 
 	/**
-	 * Gets and removes the head of the queue.
+	 * Gets and removes the head of the queue, waiting for an element to become
+	 * available if the queue is empty.
 	 * 
-	 * @return the head of the queue. Null if the queue is empty.
+	 * @return the head of the queue. Null if the queue has been closed or the
+	 *         waiting thread was interrupted.
 	 */
-	public Object poll() {
-		Object result;
-		synchronized (elements) {
-			try {
-				while (size == 0)
-					elements.wait();
-			} catch (InterruptedException e) {
+	public HeapElement poll() {
+		HeapElement result;
+		synchronized (lock) {
+			while (size == 0 && !closed) {
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					return null;
+				}
+			}
+			if (closed) {
+				return null;
 			}
 			result = elements[0];
 			removeAt(0);
@@ -121,12 +156,34 @@ public class PriorityQueue {
 		return result;
 	}
 
+	/**
+	 * Closes the queue. All threads waiting in {@link #poll()} return null and
+	 * subsequent polls do not block anymore.
+	 */
+	public void close() {
+		synchronized (lock) {
+			closed = true;
+			lock.notifyAll();
+		}
+	}
+
 	public boolean isEmpty() {
-		synchronized (elements) {
+		synchronized (lock) {
 			return size == 0;
 		}
 	}
 
+	/**
+	 * @param o
+	 *            the element to look for
+	 * @return true if the element is currently queued
+	 */
+	public boolean contains(HeapElement o) {
+		synchronized (lock) {
+			return indexOf(o) >= 0;
+		}
+	}
+
 	/**
 	 * Removes the specified object of the priority queue.
 	 * 
@@ -135,34 +192,128 @@ public class PriorityQueue {
 	 * @return true if the object is in the priority queue, false if the object
 	 *         is not in the priority queue.
 	 */
-	public boolean remove(Object o) {
-		if (o == null) {
-			return false;
+	public boolean remove(HeapElement o) {
+		synchronized (lock) {
+			int index = indexOf(o);
+			if (index < 0) {
+				return false;
+			}
+			removeAt(index);
 		}
-		synchronized (elements) {
-			int targetIndex;
-			for (targetIndex = 0; targetIndex < size; targetIndex++) {
-				if (0 == this.compare(o, elements[targetIndex])) {
-					break;
-				}
+		return true;
+	}
+
+	/**
+	 * Restores the heap order after the priority of the given element has
+	 * changed.
+	 * 
+	 * @param o
+	 *            the element whose priority changed
+	 * @return true if the element is in the priority queue
+	 */
+	public boolean update(HeapElement o) {
+		synchronized (lock) {
+			int index = indexOf(o);
+			if (index < 0) {
+				return false;
+			}
+			siftUp(index);
+			siftDown(o.getHeapIndex());
+		}
+		return true;
+	}
+
+	/**
+	 * Lets the prioritizer change the priority of the element and restores
+	 * the heap order, both under the lock of the queue, so that no poll sees
+	 * the heap in between. The element is dropped from the queue if the
+	 * prioritizer rejects it.
+	 * 
+	 * @param o
+	 *            the element, its priority is changed even if it is not queued
+	 * @param prioritizer
+	 *            changes the priority of the element
+	 * @return true if the element is in the priority queue
+	 */
+	public boolean update(HeapElement o, Prioritizer prioritizer) {
+		synchronized (lock) {
+			boolean keep = prioritizer.prioritize(o);
+			int index = indexOf(o);
+			if (index < 0) {
+				return false;
 			}
-			if (size == 0 || size == targetIndex) {
+			if (!keep) {
+				removeAt(index);
 				return false;
 			}
-			removeAt(targetIndex);
+			siftUp(index);
+			siftDown(o.getHeapIndex());
 		}
 		return true;
 	}
 
-	private Object[] newElementArray(int capacity) {
-		return new Object[capacity];
+	/**
+	 * Lets the prioritizer update the priority of every queued element, drops
+	 * the elements it rejects and then rebuilds the heap in O(n). This is
+	 * cheaper than updating the elements one by one when most priorities
+	 * change at once.
+	 * 
+	 * @param prioritizer
+	 *            called once for each element in the queue
+	 */
+	public void reorder(Prioritizer prioritizer) {
+		synchronized (lock) {
+			int kept = 0;
+			for (int i = 0; i < size; i++) {
+				HeapElement o = elements[i];
+				elements[i] = null;
+				if (prioritizer.prioritize(o)) {
+					setAt(kept++, o);
+				} else {
+					o.setHeapIndex(-1);
+				}
+			}
+			size = kept;
+			for (int i = size / 2 - 1; i >= 0; i--) {
+				siftDown(i);
+			}
+		}
+	}
+
+	private int indexOf(HeapElement o) {
+		if (o == null) {
+			return -1;
+		}
+		int index = o.getHeapIndex();
+		if (index < 0 || index >= size || elements[index] != o) {
+			return -1;
+		}
+		return index;
+	}
+
+	private HeapElement[] newElementArray(int capacity) {
+		return new HeapElement[capacity];
 	}
 
 	private void removeAt(int index) {
+		HeapElement removed = elements[index];
 		size--;
-		elements[index] = elements[size];
-		siftDown(index);
-		elements[size] = null;
+		if (index != size) {
+			// the last element may belong above or below the freed slot
+			HeapElement moved = elements[size];
+			elements[size] = null;
+			setAt(index, moved);
+			siftUp(index);
+			siftDown(moved.getHeapIndex());
+		} else {
+			elements[size] = null;
+		}
+		removed.setHeapIndex(-1);
+	}
+
+	private void setAt(int index, HeapElement o) {
+		elements[index] = o;
+		o.setHeapIndex(index);
 	}
 
 	private int compare(Object o1, Object o2) {
@@ -173,22 +324,22 @@ public class PriorityQueue {
 	}
 
 	private void siftUp(int childIndex) {
-		Object target = elements[childIndex];
+		HeapElement target = elements[childIndex];
 		int parentIndex;
 		while (childIndex > 0) {
 			parentIndex = (childIndex - 1) / 2;
-			Object parent = elements[parentIndex];
+			HeapElement parent = elements[parentIndex];
 			if (compare(parent, target) <= 0) {
 				break;
 			}
-			elements[childIndex] = parent;
+			setAt(childIndex, parent);
 			childIndex = parentIndex;
 		}
-		elements[childIndex] = target;
+		setAt(childIndex, target);
 	}
 
 	private void siftDown(int rootIndex) {
-		Object target = elements[rootIndex];
+		HeapElement target = elements[rootIndex];
 		int childIndex;
 		while ((childIndex = rootIndex * 2 + 1) < size) {
 			if (childIndex + 1 < size
@@ -198,15 +349,16 @@ public class PriorityQueue {
 			if (compare(target, elements[childIndex]) <= 0) {
 				break;
 			}
-			elements[rootIndex] = elements[childIndex];
+			setAt(rootIndex, elements[childIndex]);
 			rootIndex = childIndex;
 		}
-		elements[rootIndex] = target;
+		setAt(rootIndex, target);
 	}
 
 	private void growToSize(int size) {
 		if (size > elements.length) {
-			Object[] newElements = newElementArray(size * DEFAULT_CAPACITY_RATIO);
+			HeapElement[] newElements = newElementArray(size
+					* DEFAULT_CAPACITY_RATIO);
 			System.arraycopy(elements, 0, newElements, 0, elements.length);
 			elements = newElements;
 		}
@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2009 joerg <schreibubi@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.schreibubi.kartlaegga.mapviewer;
+
+import java.util.Vector;
+
+/**
+ * Delivers property change events on a single thread in the order they were
+ * fired. Firing an event only queues it, so the firing thread is never held
+ * up by the listeners, and no thread is started per event.
+ * 
+ * @author joerg
+ */
+public class PropertyChangeDispatcher implements Runnable {
+
+	private static PropertyChangeDispatcher instance = null;
+
+	/**
+	 * Alternating listeners and their events
+	 */
+	private final Vector queue = new Vector();
+
+	private PropertyChangeDispatcher() {
+		Thread t = new Thread(this);
+		t.setPriority(Thread.NORM_PRIORITY - 1);
+		t.start();
+	}
+
+	/**
+	 * @return the dispatcher shared by all event sources, started on first
+	 *         use
+	 */
+	public static synchronized PropertyChangeDispatcher getInstance() {
+		if (instance == null) {
+			instance = new PropertyChangeDispatcher();
+		}
+		return instance;
+	}
+
+	/**
+	 * Queues an event for delivery to the listener.
+	 */
+	public void dispatch(PropertyChangeListener listener,
+			PropertyChangeEvent event) {
+		synchronized (queue) {
+			queue.addElement(listener);
+			queue.addElement(event);
+			queue.notify();
+		}
+	}
+
+	/**
+	 * @return the number of events waiting for delivery
+	 */
+	public int getPending() {
+		synchronized (queue) {
+			return queue.size() / 2;
+		}
+	}
+
+	public void run() {
+		while (true) {
+			PropertyChangeListener listener;
+			PropertyChangeEvent event;
+			synchronized (queue) {
+				while (queue.isEmpty()) {
+					try {
+						queue.wait();
+					} catch (InterruptedException e) {
+					}
+				}
+				listener = (PropertyChangeListener) queue.elementAt(0);
+				event = (PropertyChangeEvent) queue.elementAt(1);
+				queue.removeElementAt(0);
+				queue.removeElementAt(0);
+			}
+			try {
+				listener.propertyChange(event);
+			} catch (Throwable e) {
+				// a failing listener must not stop the delivery to others
+				e.printStackTrace();
+			}
+		}
+	}
+}
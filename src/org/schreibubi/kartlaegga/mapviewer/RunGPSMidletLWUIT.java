@@ -15,8 +15,6 @@
  */
 package org.schreibubi.kartlaegga.mapviewer;
 
-import java.util.Vector;
-
 import javax.microedition.location.Criteria;
 import javax.microedition.location.Location;
 import javax.microedition.location.LocationException;
@@ -57,9 +55,15 @@ public class RunGPSMidletLWUIT extends MIDlet implements ActionListener,
 			ABOUT_COMMAND);
 
 	private Form mainMenu = null;
-	private Vector locationListenerList = new Vector();
+	private LocationDispatcher locationDispatcher = new LocationDispatcher();
+	private AdaptiveSamplingController samplingController = null;
 	private RunGPSMidletLWUIT myself = this;
 
+	/**
+	 * The open map view, released when the MIDlet is destroyed
+	 */
+	private MapViewer mapViewer = null;
+
 	/** location provider */
 	private LocationProvider locationProvider = null;
 
@@ -137,7 +141,10 @@ public class RunGPSMidletLWUIT extends MIDlet implements ActionListener,
 							.getSelectedIndex();
 					switch (newSelected) {
 					case 0:
-						MapViewer mv = new MapViewer(myself, myself);
+						if (mapViewer != null) {
+							mapViewer.dispose();
+						}
+						mapViewer = new MapViewer(myself, myself);
 						break;
 					default:
 						break;
@@ -209,6 +216,10 @@ public class RunGPSMidletLWUIT extends MIDlet implements ActionListener,
 	 *            and all resources has to be released.
 	 */
 	public void destroyApp(boolean unconditional) {
+		if (mapViewer != null) {
+			mapViewer.dispose();
+			mapViewer = null;
+		}
 	}
 
 	/**
@@ -221,6 +232,9 @@ public class RunGPSMidletLWUIT extends MIDlet implements ActionListener,
 			try {
 				locationProvider = LocationProvider.getInstance(criteria);
 				locationProvider.setLocationListener(this, -1, -1, -1);
+				samplingController = new AdaptiveSamplingController(
+						locationProvider, this);
+				addLocationListener(samplingController);
 			} catch (LocationException le) {
 				System.out
 						.println("Cannot create LocationProvider for this criteria.");
@@ -235,7 +249,7 @@ public class RunGPSMidletLWUIT extends MIDlet implements ActionListener,
 		case RUN_COMMAND:
 			break;
 		case EXIT_COMMAND:
-			notifyDestroyed();
+			exitMIDlet();
 			break;
 		case BACK_COMMAND:
 
@@ -320,35 +334,31 @@ public class RunGPSMidletLWUIT extends MIDlet implements ActionListener,
 	 * (javax.microedition.location.LocationListener)
 	 */
 	public void addLocationListener(LocationListener listener) {
-		locationListenerList.addElement(listener);
+		locationDispatcher.addLocationListener(listener, false);
+	}
+
+	public void addLocationListener(LocationListener listener, boolean lossless) {
+		locationDispatcher.addLocationListener(listener, lossless);
 	}
 
 	public void removeLocationListener(LocationListener listener) {
-		locationListenerList.removeElement(listener);
+		locationDispatcher.removeLocationListener(listener);
 	}
 
 	/**
 	 * A method which is called by the location provider when the current
-	 * location is changed.
+	 * location is changed. The fix is only queued for the listeners.
 	 */
-	public synchronized void locationUpdated(LocationProvider provider,
-			Location location) {
-		for (int i = 0; i < locationListenerList.size(); i++) {
-			((LocationListener) locationListenerList.elementAt(i))
-					.locationUpdated(provider, location);
-		}
+	public void locationUpdated(LocationProvider provider, Location location) {
+		locationDispatcher.locationUpdated(provider, location);
 	}
 
 	/**
 	 * A method which is called by the location provider when its state changes
 	 * (for example, when its services are temporary unavailable).
 	 */
-	public synchronized void providerStateChanged(LocationProvider provider,
-			int newState) {
-		for (int i = 0; i < locationListenerList.size(); i++) {
-			((LocationListener) locationListenerList.elementAt(i))
-					.providerStateChanged(provider, newState);
-		}
+	public void providerStateChanged(LocationProvider provider, int newState) {
+		locationDispatcher.providerStateChanged(provider, newState);
 	}
 
 }
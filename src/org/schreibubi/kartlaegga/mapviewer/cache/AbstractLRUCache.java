@@ -32,11 +32,13 @@ public abstract class AbstractLRUCache implements LRUCacheInterface {
 	}
 
 	/* (non-Javadoc)
-	 * @see org.schreibubi.mapviewer.LRUCacheInterface#get(java.lang.String)
+	 * @see org.schreibubi.mapviewer.LRUCacheInterface#get(long)
 	 */
-	public abstract Object get(Object key);
+	public abstract Object get(long key);
 	/* (non-Javadoc)
-	 * @see org.schreibubi.mapviewer.LRUCacheInterface#put(java.lang.String, java.lang.Object)
+	 * @see org.schreibubi.mapviewer.LRUCacheInterface#put(long, java.lang.Object)
 	 */
-	public abstract void put(Object key, Object value);
+	public abstract void put(long key, Object value);
+
+	public abstract void flush() throws Exception;
 }
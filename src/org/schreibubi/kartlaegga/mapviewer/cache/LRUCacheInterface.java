@@ -15,11 +15,21 @@
  */
 package org.schreibubi.kartlaegga.mapviewer.cache;
 
+/**
+ * A cache of tiles keyed by a packed tile key, see
+ * {@link org.schreibubi.kartlaegga.mapviewer.tilefactories.Tile#key(int, int, int, int)}.
+ */
 public interface LRUCacheInterface {
 
 	
-	public void put(Object key,Object value);
+	public void put(long key,Object value);
 	
-	public Object get(Object key);
+	public Object get(long key);
+
+	/**
+	 * Writes the values kept by this cache through to wherever they are
+	 * kept persistently, including the child caches.
+	 */
+	public void flush() throws Exception;
 	
 }
@@ -18,35 +18,141 @@
  */
 package org.schreibubi.kartlaegga.mapviewer.cache;
 
-import org.schreibubi.kartlaegga.extend.LinkedHashMap;
-import org.schreibubi.kartlaegga.extend.LinkedHashMap.KeyIterator;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+import javax.microedition.io.Connector;
+import javax.microedition.io.file.FileConnection;
+
+import org.schreibubi.kartlaegga.extend.LongLinkedHashMap;
 
 /**
+ * A cache keeping the encoded tile images on the file system (JSR-75), so
+ * that they survive a restart of the application.
+ * 
+ * Every tile is stored in its own file named by a running number. The keys,
+ * file numbers and sizes are kept in memory in least recently used order and
+ * saved to a single index file, which is read once on startup instead of
+ * looking at each tile file. If the application dies before the index was
+ * saved, tiles written since then are not in the index; they are deleted on
+ * startup so that they do not count against the space of the device. Entries
+ * whose file is gone are dropped on access.
+ * 
+ * Reading a tile blocks on the file system and may make the device ask the
+ * user for permission, so the cache must not be used from the paint thread.
+ * 
+ * Only byte arrays are stored. Other values, like the tiles evicted from the
+ * memory cache, have already been written when they were loaded and are
+ * ignored.
+ * 
  * @author joerg
- *
  */
 public class LRUDiskCache extends AbstractLRUCache {
 
-	public LRUDiskCache(LRUCacheInterface child) {
-		super(child);
+	private static final int INDEX_MAGIC = 0x4b544332;
+
+	private static final String INDEX_FILE = "index.bin";
+
+	/**
+	 * The index is saved after this many changes
+	 */
+	private static final int INDEX_SAVE_INTERVAL = 16;
+
+	private final String directory;
+
+	private final int maxBytes;
+
+	private int bytes = 0;
+
+	private int nextFile = 0;
+
+	private int unsavedChanges = 0;
+
+	private static class Entry {
+		final int file;
+		final int size;
+
+		Entry(int file, int size) {
+			this.file = file;
+			this.size = size;
+		}
 	}
 
-	final static int MAX_CACHE_TILES=20;
-	LinkedHashMap cache = new LinkedHashMap() {
-		protected boolean removeEldestEntry(LinkedHashMapEntry eldest) {
-			if (cache.size() > MAX_CACHE_TILES) {
-				if (child != null) {
-					child.put(eldest.getKey(), eldest.getValue());
-				}
+	LongLinkedHashMap cache = new LongLinkedHashMap() {
+		protected boolean removeEldestEntry(long key, Object eldest) {
+			if (bytes > maxBytes && cache.size() > 1) {
+				Entry e = (Entry) eldest;
+				bytes -= e.size;
+				delete(e.file);
+				unsavedChanges++;
 				return true;
 			} else
 				return false;
 		}
 	};
 
+	/**
+	 * Opens the cache in the given directory, creating it if necessary, reads
+	 * its index and deletes the tile files missing from it.
+	 * 
+	 * @param child
+	 *            the cache asked for values not found here, may be null
+	 * @param directory
+	 *            a file url of a directory ending with a slash, e.g.
+	 *            <code>file:///E:/kartlaegga/</code>
+	 * @param maxBytes
+	 *            the number of bytes the tile files may occupy
+	 * @throws IOException
+	 *             if the directory is not accessible
+	 */
+	public LRUDiskCache(LRUCacheInterface child, String directory, int maxBytes)
+			throws IOException {
+		super(child);
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		FileConnection dir = (FileConnection) Connector.open(directory);
+		try {
+			if (!dir.exists()) {
+				dir.mkdir();
+			}
+		} finally {
+			dir.close();
+		}
+		loadIndex();
+		deleteOrphans();
+	}
 
-	public Object get(Object key) {
-		Object value = cache.get(key);
+	/**
+	 * Returns the private directory of the application as given by the
+	 * <code>fileconn.dir.private</code> property, or null if the device does
+	 * not support JSR-75 or has no such directory.
+	 */
+	public static String getDefaultDirectory() {
+		if (System.getProperty("microedition.io.file.FileConnection.version") == null) {
+			return null;
+		}
+		return System.getProperty("fileconn.dir.private");
+	}
+
+	public synchronized Object get(long key) {
+		Entry e = (Entry) cache.get(key);
+		Object value = null;
+		if (e != null) {
+			try {
+				value = read(e.file);
+			} catch (IOException ex) {
+				System.out.println("dropping unreadable tile " + key);
+				cache.remove(key);
+				bytes -= e.size;
+				unsavedChanges++;
+			}
+		}
 		if (value == null) {
 			if (child != null) {
 				value = child.get(key);
@@ -55,18 +161,222 @@ public class LRUDiskCache extends AbstractLRUCache {
 		return value;
 	}
 
-	public void put(Object key, Object value) {
-		cache.put(key, value);
+	public synchronized void put(long key, Object value) {
+		if (!(value instanceof byte[])) {
+			return;
+		}
+		byte[] data = (byte[]) value;
+		Entry old = (Entry) cache.peek(key);
+		int file = old != null ? old.file : nextFile++;
+		try {
+			write(file, data);
+		} catch (IOException ex) {
+			System.out.println("could not store tile " + key + ": " + ex);
+			return;
+		}
+		if (old != null) {
+			bytes -= old.size;
+		}
+		bytes += data.length;
+		cache.put(key, new Entry(file, data.length));
+		if (++unsavedChanges >= INDEX_SAVE_INTERVAL) {
+			saveIndex();
+		}
+	}
+
+	/**
+	 * @return the number of bytes of all stored tiles
+	 */
+	public synchronized int getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Saves the index, to be called before the application exits.
+	 */
+	public synchronized void flush() {
+		if (unsavedChanges > 0) {
+			saveIndex();
+		}
+	}
+
+	private String fileName(int file) {
+		return directory + "t" + file;
+	}
+
+	private byte[] read(int file) throws IOException {
+		FileConnection fc = (FileConnection) Connector.open(fileName(file),
+				Connector.READ);
+		DataInputStream in = null;
+		try {
+			byte[] data = new byte[(int) fc.fileSize()];
+			in = fc.openDataInputStream();
+			in.readFully(data);
+			return data;
+		} finally {
+			close(in);
+			fc.close();
+		}
 	}
 
-	public void flush() throws Exception {
-		for (KeyIterator k = cache.iterator(); k.hasNext();) {
-			Object key = k.next();
-			if (child!=null) {
-				child.put(key, cache.get(key));
+	private void write(int file, byte[] data) throws IOException {
+		FileConnection fc = (FileConnection) Connector.open(fileName(file),
+				Connector.READ_WRITE);
+		OutputStream out = null;
+		try {
+			if (fc.exists()) {
+				fc.truncate(0);
+			} else {
+				fc.create();
 			}
+			out = fc.openOutputStream();
+			out.write(data);
+		} finally {
+			close(out);
+			fc.close();
 		}
+	}
 
+	private void delete(int file) {
+		try {
+			FileConnection fc = (FileConnection) Connector.open(
+					fileName(file), Connector.READ_WRITE);
+			try {
+				if (fc.exists()) {
+					fc.delete();
+				}
+			} finally {
+				fc.close();
+			}
+		} catch (IOException e) {
+			System.out.println("could not delete tile file " + file);
+		}
+	}
+
+	/**
+	 * Reads the index. The entries are stored eldest first, so putting them
+	 * in that order restores the LRU order.
+	 */
+	private void loadIndex() {
+		try {
+			FileConnection fc = (FileConnection) Connector.open(directory
+					+ INDEX_FILE, Connector.READ);
+			DataInputStream in = null;
+			try {
+				if (!fc.exists()) {
+					return;
+				}
+				in = fc.openDataInputStream();
+				if (in.readInt() != INDEX_MAGIC) {
+					return;
+				}
+				nextFile = in.readInt();
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					long key = in.readLong();
+					int file = in.readInt();
+					int size = in.readInt();
+					cache.put(key, new Entry(file, size));
+					bytes += size;
+				}
+			} finally {
+				close(in);
+				fc.close();
+			}
+		} catch (IOException e) {
+			System.out.println("could not read tile index: " + e);
+		}
+	}
+
+	/**
+	 * Deletes the tile files which are not in the index, left over when the
+	 * application died before saving it. The names are collected first, the
+	 * listing may not survive deleting its files.
+	 */
+	private void deleteOrphans() {
+		Hashtable indexed = new Hashtable();
+		for (int i = cache.first(); i >= 0; i = cache.next(i)) {
+			Integer file = new Integer(((Entry) cache.valueAt(i)).file);
+			indexed.put(file, file);
+		}
+		Vector orphans = new Vector();
+		try {
+			FileConnection dir = (FileConnection) Connector.open(directory,
+					Connector.READ);
+			try {
+				for (Enumeration e = dir.list(); e.hasMoreElements();) {
+					String name = (String) e.nextElement();
+					if (!name.startsWith("t")) {
+						continue;
+					}
+					try {
+						Integer file = Integer.valueOf(name.substring(1));
+						if (!indexed.containsKey(file)) {
+							orphans.addElement(file);
+						}
+					} catch (NumberFormatException ex) {
+						// not one of ours
+					}
+				}
+			} finally {
+				dir.close();
+			}
+		} catch (IOException e) {
+			System.out.println("could not list the tile directory: " + e);
+			return;
+		}
+		for (int i = 0; i < orphans.size(); i++) {
+			delete(((Integer) orphans.elementAt(i)).intValue());
+		}
+	}
+
+	private void saveIndex() {
+		try {
+			FileConnection fc = (FileConnection) Connector.open(directory
+					+ INDEX_FILE, Connector.READ_WRITE);
+			DataOutputStream out = null;
+			try {
+				if (fc.exists()) {
+					fc.truncate(0);
+				} else {
+					fc.create();
+				}
+				out = fc.openDataOutputStream();
+				out.writeInt(INDEX_MAGIC);
+				out.writeInt(nextFile);
+				out.writeInt(cache.size());
+				for (int i = cache.first(); i >= 0; i = cache.next(i)) {
+					Entry e = (Entry) cache.valueAt(i);
+					out.writeLong(cache.keyAt(i));
+					out.writeInt(e.file);
+					out.writeInt(e.size);
+				}
+				unsavedChanges = 0;
+			} finally {
+				close(out);
+				fc.close();
+			}
+		} catch (IOException e) {
+			System.out.println("could not save tile index: " + e);
+		}
+	}
+
+	private static void close(InputStream in) {
+		if (in != null) {
+			try {
+				in.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private static void close(OutputStream out) {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+			}
+		}
 	}
 
 }
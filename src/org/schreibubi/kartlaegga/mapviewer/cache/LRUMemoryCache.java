@@ -18,53 +18,138 @@
  */
 package org.schreibubi.kartlaegga.mapviewer.cache;
 
-import org.schreibubi.kartlaegga.extend.LinkedHashMap;
-import org.schreibubi.kartlaegga.extend.LinkedHashMap.KeyIterator;
+import org.schreibubi.kartlaegga.extend.LongLinkedHashMap;
 
 /**
+ * A memory cache limited by the estimated number of bytes of its values
+ * rather than by their number. Values implementing {@link Sized} report their
+ * own size, all others are counted with {@link #DEFAULT_ENTRY_SIZE}. The least
+ * recently used values are dropped, the cache has no child: a child would be
+ * written to while holding the lock the paint thread reads with.
+ * 
+ * Looking up a value allocates nothing, the entries remembering the sizes are
+ * recycled when values are evicted.
+ * 
  * @author joerg
  * 
  */
 public class LRUMemoryCache extends AbstractLRUCache {
 
-	final static int MAX_CACHE_TILES=20;
-	LinkedHashMap cache = new LinkedHashMap() {
-		protected boolean removeEldestEntry(LinkedHashMapEntry eldest) {
-			if (cache.size() > MAX_CACHE_TILES) {
-				if (child != null) {
-					child.put(eldest.getKey(), eldest.getValue());
-				}
+	/**
+	 * The size assumed for values which do not implement {@link Sized}
+	 */
+	public final static int DEFAULT_ENTRY_SIZE = 256;
+
+	/**
+	 * Without an explicit budget the cache may use this fraction of the heap
+	 */
+	final static int DEFAULT_HEAP_DIVISOR = 2;
+
+	private final int maxBytes;
+
+	private int bytes = 0;
+
+	/**
+	 * A cached value with the size it was accounted with when it was put
+	 */
+	private static class Entry {
+		Object value;
+		int size;
+		Entry nextFree;
+	}
+
+	/**
+	 * Evicted entries waiting for reuse
+	 */
+	private Entry free = null;
+
+	LongLinkedHashMap cache = new LongLinkedHashMap() {
+		protected boolean removeEldestEntry(long key, Object eldest) {
+			if (bytes > maxBytes && cache.size() > 1) {
+				Entry e = (Entry) eldest;
+				bytes -= e.size;
+				recycle(e);
 				return true;
 			} else
 				return false;
 		}
 	};
 
-	public LRUMemoryCache(LRUCacheInterface child) {
-		super(child);
+	/**
+	 * Creates a cache using half of the current heap.
+	 */
+	public LRUMemoryCache() {
+		this((int) (Runtime.getRuntime().totalMemory() / DEFAULT_HEAP_DIVISOR));
 	}
 
-	public Object get(Object key) {
-		Object value = cache.get(key);
-		if (value == null) {
-			if (child != null) {
-				value = child.get(key);
-			}
-		}
-		return value;
+	/**
+	 * @param maxBytes
+	 *            the estimated number of bytes the values may occupy
+	 */
+	public LRUMemoryCache(int maxBytes) {
+		super(null);
+		this.maxBytes = maxBytes;
 	}
 
-	public void put(Object key, Object value) {
-		cache.put(key, value);
+	public synchronized Object get(long key) {
+		Entry e = (Entry) cache.get(key);
+		return e == null ? null : e.value;
 	}
 
-	public void flush() throws Exception {
-		for (KeyIterator k = cache.iterator(); k.hasNext();) {
-			Object key = k.next();
-			if (child!=null) {
-				child.put(key, cache.get(key));
-			}
+	public synchronized void put(long key, Object value) {
+		int size = value instanceof Sized ? ((Sized) value).getEstimatedSize()
+				: DEFAULT_ENTRY_SIZE;
+		Entry e = (Entry) cache.peek(key);
+		if (e != null) {
+			bytes -= e.size;
+		} else if (free != null) {
+			e = free;
+			free = e.nextFree;
+			e.nextFree = null;
+		} else {
+			e = new Entry();
 		}
+		e.value = value;
+		e.size = size;
+		bytes += size;
+		cache.put(key, e);
+	}
+
+	/**
+	 * Measures the value of the key again, for values whose size changed
+	 * since they were put, and evicts values if the budget is exceeded now.
+	 * Nothing happens if the key is not cached.
+	 */
+	public synchronized void resize(long key) {
+		Entry e = (Entry) cache.peek(key);
+		if (e != null) {
+			put(key, e.value);
+		}
+	}
+
+	/**
+	 * @return the estimated number of bytes of all cached values
+	 */
+	public synchronized int getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return the budget of this cache in bytes
+	 */
+	public int getMaxBytes() {
+		return maxBytes;
+	}
+
+	private void recycle(Entry e) {
+		e.value = null;
+		e.nextFree = free;
+		free = e;
+	}
 
+	/**
+	 * Nothing to do, the values only live in memory.
+	 */
+	public void flush() {
 	}
 }
@@ -0,0 +1,382 @@
+/**
+ * Copyright (C) 2009 joerg <schreibubi@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.schreibubi.kartlaegga.mapviewer.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+import org.schreibubi.kartlaegga.extend.LongLinkedHashMap;
+
+/**
+ * A cache keeping the encoded tile images in the record management system,
+ * the only persistent storage every MIDP device has.
+ * 
+ * The tiles are spread over a few record storages, each new tile going to the
+ * one holding the fewest bytes, so that no single RecordStore grows beyond
+ * what the device allows. A separate storage holds the index of all tiles in
+ * least recently used order as a single record, which is read once on
+ * startup, and a one byte record telling whether that index is up to date.
+ * If the application died with unsaved changes, the index is reconciled with
+ * the record ids actually present.
+ * 
+ * Reading a tile blocks on the record store, so like {@link LRUDiskCache}
+ * the cache must not be used from the paint thread. Only byte arrays are
+ * stored, other values are ignored.
+ * 
+ * @author joerg
+ */
+public class LRURecordStoreCache extends AbstractLRUCache {
+
+	/**
+	 * The number of storages the tiles are spread over if not given otherwise
+	 */
+	public static final int DEFAULT_SHARD_COUNT = 4;
+
+	/**
+	 * The longest allowed name, leaving room for the suffix of the storages
+	 */
+	public static final int MAX_NAME_LENGTH = 30;
+
+	private static final int INDEX_MAGIC = 0x4b545232;
+
+	/**
+	 * The index is saved after this many changes
+	 */
+	private static final int INDEX_SAVE_INTERVAL = 16;
+
+	private static final byte[] CLEAN = { 1 };
+
+	private static final byte[] DIRTY = { 0 };
+
+	private final RecordStorage.Factory factory;
+
+	private final String name;
+
+	private final int maxBytes;
+
+	private RecordStorage indexStorage;
+
+	private RecordStorage[] shards;
+
+	private int[] shardBytes;
+
+	private int stateId;
+
+	private int indexId;
+
+	/**
+	 * Set while the saved index does not describe the records
+	 */
+	private boolean dirty = false;
+
+	private int bytes = 0;
+
+	private int unsavedChanges = 0;
+
+	private static class Entry {
+		final int shard;
+		final int id;
+		final int size;
+
+		Entry(int shard, int id, int size) {
+			this.shard = shard;
+			this.id = id;
+			this.size = size;
+		}
+	}
+
+	LongLinkedHashMap cache = new LongLinkedHashMap() {
+		protected boolean removeEldestEntry(long key, Object eldest) {
+			if (bytes > maxBytes && cache.size() > 1) {
+				Entry e = (Entry) eldest;
+				try {
+					shards[e.shard].deleteRecord(e.id);
+				} catch (IOException ex) {
+					System.out.println("could not delete tile record " + e.id);
+				}
+				forget(e);
+				return true;
+			} else
+				return false;
+		}
+	};
+
+	/**
+	 * Opens the storages of the cache, creating them if necessary, and reads
+	 * the index.
+	 * 
+	 * @param child
+	 *            the cache asked for values not found here, may be null
+	 * @param factory
+	 *            opens the storages, e.g. {@link RMSRecordStorage#FACTORY}
+	 * @param name
+	 *            the prefix of the storage names, at most
+	 *            {@link #MAX_NAME_LENGTH} characters
+	 * @param shardCount
+	 *            the number of storages the tiles are spread over
+	 * @param maxBytes
+	 *            the number of bytes the tiles may occupy
+	 * @throws IOException
+	 *             if the storages cannot be opened
+	 */
+	public LRURecordStoreCache(LRUCacheInterface child,
+			RecordStorage.Factory factory, String name, int shardCount,
+			int maxBytes) throws IOException {
+		super(child);
+		if (name.length() > MAX_NAME_LENGTH || shardCount < 1
+				|| shardCount > 9) {
+			throw new IllegalArgumentException();
+		}
+		this.factory = factory;
+		this.name = name;
+		this.maxBytes = maxBytes;
+		shards = new RecordStorage[shardCount];
+		shardBytes = new int[shardCount];
+		open();
+		if (!loadIndex()) {
+			wipe();
+		}
+	}
+
+	public synchronized Object get(long key) {
+		Entry e = (Entry) cache.get(key);
+		Object value = null;
+		if (e != null) {
+			try {
+				value = shards[e.shard].getRecord(e.id);
+			} catch (IOException ex) {
+				System.out.println("dropping unreadable tile " + key);
+				cache.remove(key);
+				forget(e);
+			}
+		}
+		if (value == null) {
+			if (child != null) {
+				value = child.get(key);
+			}
+		}
+		return value;
+	}
+
+	public synchronized void put(long key, Object value) {
+		if (!(value instanceof byte[])) {
+			return;
+		}
+		byte[] data = (byte[]) value;
+		Entry old = (Entry) cache.peek(key);
+		Entry e;
+		try {
+			markDirty();
+			if (old != null) {
+				shards[old.shard].setRecord(old.id, data, 0, data.length);
+				forget(old);
+				e = new Entry(old.shard, old.id, data.length);
+			} else {
+				int shard = emptiestShard();
+				e = new Entry(shard, shards[shard].addRecord(data, 0,
+						data.length), data.length);
+			}
+		} catch (IOException ex) {
+			System.out.println("could not store tile " + key + ": " + ex);
+			return;
+		}
+		bytes += e.size;
+		shardBytes[e.shard] += e.size;
+		cache.put(key, e);
+		if (++unsavedChanges >= INDEX_SAVE_INTERVAL) {
+			saveIndex();
+		}
+	}
+
+	/**
+	 * @return the number of bytes of all stored tiles
+	 */
+	public synchronized int getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Saves the index, to be called before the application exits.
+	 */
+	public synchronized void flush() {
+		if (dirty || unsavedChanges > 0) {
+			saveIndex();
+		}
+	}
+
+	/**
+	 * Closes all storages, the cache must not be used afterwards.
+	 */
+	public synchronized void close() {
+		flush();
+		indexStorage.close();
+		for (int i = 0; i < shards.length; i++) {
+			shards[i].close();
+		}
+	}
+
+	private void forget(Entry e) {
+		bytes -= e.size;
+		shardBytes[e.shard] -= e.size;
+	}
+
+	private int emptiestShard() {
+		int shard = 0;
+		for (int i = 1; i < shards.length; i++) {
+			if (shardBytes[i] < shardBytes[shard]) {
+				shard = i;
+			}
+		}
+		return shard;
+	}
+
+	private void open() throws IOException {
+		indexStorage = factory.open(name + "i");
+		for (int i = 0; i < shards.length; i++) {
+			shards[i] = factory.open(name + i);
+		}
+	}
+
+	/**
+	 * Throws away all storages and starts with an empty index.
+	 */
+	private void wipe() throws IOException {
+		indexStorage.close();
+		factory.delete(name + "i");
+		for (int i = 0; i < shards.length; i++) {
+			shards[i].close();
+			factory.delete(name + i);
+			shardBytes[i] = 0;
+		}
+		cache.clear();
+		bytes = 0;
+		open();
+		stateId = indexStorage.addRecord(CLEAN, 0, 1);
+		byte[] index = encodeIndex();
+		indexId = indexStorage.addRecord(index, 0, index.length);
+		dirty = false;
+		unsavedChanges = 0;
+	}
+
+	/**
+	 * @return false if there is no usable index
+	 */
+	private boolean loadIndex() {
+		try {
+			int[] ids = indexStorage.getRecordIds();
+			if (ids.length != 2) {
+				return false;
+			}
+			// the state record was added first
+			stateId = Math.min(ids[0], ids[1]);
+			indexId = Math.max(ids[0], ids[1]);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+					indexStorage.getRecord(indexId)));
+			if (in.readInt() != INDEX_MAGIC) {
+				return false;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				long key = in.readLong();
+				Entry e = new Entry(in.readByte(), in.readInt(), in.readInt());
+				if (e.shard >= shards.length) {
+					return false;
+				}
+				cache.put(key, e);
+				bytes += e.size;
+				shardBytes[e.shard] += e.size;
+			}
+			if (indexStorage.getRecord(stateId)[0] != CLEAN[0]) {
+				reconcile();
+			}
+			return true;
+		} catch (IOException e) {
+			System.out.println("could not read tile index: " + e);
+			return false;
+		}
+	}
+
+	/**
+	 * Drops the entries without a record and the records without an entry,
+	 * which are left behind if the application died before saving the index.
+	 */
+	private void reconcile() throws IOException {
+		Hashtable[] known = new Hashtable[shards.length];
+		for (int i = 0; i < known.length; i++) {
+			known[i] = new Hashtable();
+		}
+		for (int i = cache.first(); i >= 0; i = cache.next(i)) {
+			Entry e = (Entry) cache.valueAt(i);
+			known[e.shard].put(new Integer(e.id), new Long(cache.keyAt(i)));
+		}
+		for (int i = 0; i < shards.length; i++) {
+			int[] ids = shards[i].getRecordIds();
+			for (int j = 0; j < ids.length; j++) {
+				if (known[i].remove(new Integer(ids[j])) == null) {
+					shards[i].deleteRecord(ids[j]);
+				}
+			}
+			for (Enumeration keys = known[i].elements(); keys
+					.hasMoreElements();) {
+				long key = ((Long) keys.nextElement()).longValue();
+				forget((Entry) cache.peek(key));
+				cache.remove(key);
+			}
+		}
+		dirty = true;
+		saveIndex();
+	}
+
+	private void markDirty() throws IOException {
+		if (!dirty) {
+			indexStorage.setRecord(stateId, DIRTY, 0, 1);
+			dirty = true;
+		}
+	}
+
+	private byte[] encodeIndex() throws IOException {
+		ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytesOut);
+		out.writeInt(INDEX_MAGIC);
+		out.writeInt(cache.size());
+		for (int i = cache.first(); i >= 0; i = cache.next(i)) {
+			Entry e = (Entry) cache.valueAt(i);
+			out.writeLong(cache.keyAt(i));
+			out.writeByte(e.shard);
+			out.writeInt(e.id);
+			out.writeInt(e.size);
+		}
+		out.close();
+		return bytesOut.toByteArray();
+	}
+
+	private void saveIndex() {
+		try {
+			byte[] index = encodeIndex();
+			indexStorage.setRecord(indexId, index, 0, index.length);
+			indexStorage.setRecord(stateId, CLEAN, 0, 1);
+			dirty = false;
+			unsavedChanges = 0;
+		} catch (IOException e) {
+			System.out.println("could not save tile index: " + e);
+		}
+	}
+}
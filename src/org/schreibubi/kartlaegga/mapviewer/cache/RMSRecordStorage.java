@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2009 joerg <schreibubi@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.schreibubi.kartlaegga.mapviewer.cache;
+
+import java.io.IOException;
+
+import javax.microedition.rms.RecordEnumeration;
+import javax.microedition.rms.RecordStore;
+import javax.microedition.rms.RecordStoreException;
+import javax.microedition.rms.RecordStoreNotFoundException;
+
+/**
+ * A {@link RecordStorage} backed by a RecordStore of the record management
+ * system.
+ * 
+ * @author joerg
+ */
+public class RMSRecordStorage implements RecordStorage {
+
+	/**
+	 * Opens RecordStores of this MIDlet suite
+	 */
+	public static final Factory FACTORY = new Factory() {
+		public RecordStorage open(String name) throws IOException {
+			try {
+				return new RMSRecordStorage(RecordStore.openRecordStore(name,
+						true));
+			} catch (RecordStoreException e) {
+				throw new IOException(e.toString());
+			}
+		}
+
+		public void delete(String name) throws IOException {
+			try {
+				RecordStore.deleteRecordStore(name);
+			} catch (RecordStoreNotFoundException e) {
+			} catch (RecordStoreException e) {
+				throw new IOException(e.toString());
+			}
+		}
+	};
+
+	private final RecordStore store;
+
+	private RMSRecordStorage(RecordStore store) {
+		this.store = store;
+	}
+
+	public int addRecord(byte[] data, int offset, int length)
+			throws IOException {
+		try {
+			return store.addRecord(data, offset, length);
+		} catch (RecordStoreException e) {
+			throw new IOException(e.toString());
+		}
+	}
+
+	public void setRecord(int id, byte[] data, int offset, int length)
+			throws IOException {
+		try {
+			store.setRecord(id, data, offset, length);
+		} catch (RecordStoreException e) {
+			throw new IOException(e.toString());
+		}
+	}
+
+	public byte[] getRecord(int id) throws IOException {
+		try {
+			return store.getRecord(id);
+		} catch (RecordStoreException e) {
+			throw new IOException(e.toString());
+		}
+	}
+
+	public void deleteRecord(int id) throws IOException {
+		try {
+			store.deleteRecord(id);
+		} catch (RecordStoreException e) {
+			throw new IOException(e.toString());
+		}
+	}
+
+	public int[] getRecordIds() throws IOException {
+		RecordEnumeration e = null;
+		try {
+			e = store.enumerateRecords(null, null, false);
+			int[] ids = new int[e.numRecords()];
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = e.nextRecordId();
+			}
+			return ids;
+		} catch (RecordStoreException ex) {
+			throw new IOException(ex.toString());
+		} finally {
+			if (e != null) {
+				e.destroy();
+			}
+		}
+	}
+
+	public void close() {
+		try {
+			store.closeRecordStore();
+		} catch (RecordStoreException e) {
+		}
+	}
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) 2009 joerg <schreibubi@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.schreibubi.kartlaegga.mapviewer.cache;
+
+import java.io.IOException;
+
+/**
+ * A named set of byte records, as provided by a MIDP RecordStore. Caches use
+ * this instead of the RecordStore itself, the only implementation is
+ * {@link RMSRecordStorage}.
+ * 
+ * @author joerg
+ */
+public interface RecordStorage {
+
+	/**
+	 * Opens record storages by name.
+	 */
+	public interface Factory {
+
+		/**
+		 * Opens the storage of the given name, creating it if necessary.
+		 */
+		public RecordStorage open(String name) throws IOException;
+
+		/**
+		 * Deletes the storage of the given name with all its records. Nothing
+		 * happens if there is no such storage.
+		 */
+		public void delete(String name) throws IOException;
+	}
+
+	/**
+	 * @return the id of the new record
+	 */
+	public int addRecord(byte[] data, int offset, int length)
+			throws IOException;
+
+	public void setRecord(int id, byte[] data, int offset, int length)
+			throws IOException;
+
+	/**
+	 * @throws IOException
+	 *             if there is no record with this id
+	 */
+	public byte[] getRecord(int id) throws IOException;
+
+	public void deleteRecord(int id) throws IOException;
+
+	/**
+	 * @return the ids of all records in no particular order
+	 */
+	public int[] getRecordIds() throws IOException;
+
+	public void close();
+}
@@ -17,15 +17,22 @@ package org.schreibubi.kartlaegga.mapviewer.tilefactories;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 
-import javax.microedition.io.Connector;
 import javax.microedition.io.HttpConnection;
 
 import org.schreibubi.kartlaegga.extend.Comparator;
+import org.schreibubi.kartlaegga.extend.Rectangle;
 import org.schreibubi.kartlaegga.mapviewer.GeoUtil;
+import org.schreibubi.kartlaegga.mapviewer.HeapElement;
 import org.schreibubi.kartlaegga.mapviewer.PriorityQueue;
+import org.schreibubi.kartlaegga.mapviewer.cache.LRUCacheInterface;
+import org.schreibubi.kartlaegga.mapviewer.cache.LRUDiskCache;
 import org.schreibubi.kartlaegga.mapviewer.cache.LRUMemoryCache;
+import org.schreibubi.kartlaegga.mapviewer.cache.LRURecordStoreCache;
+import org.schreibubi.kartlaegga.mapviewer.cache.RMSRecordStorage;
 
+import com.sun.lwuit.Display;
 import com.sun.lwuit.Image;
 
 /**
@@ -34,6 +41,49 @@ import com.sun.lwuit.Image;
  */
 public abstract class AbstractTileFactory extends TileFactory {
 
+	/**
+	 * The number of download workers started if none is given.
+	 */
+	public static final int DEFAULT_WORKER_COUNT = 3;
+
+	/**
+	 * The number of concurrent downloads allowed per host if not configured
+	 * otherwise.
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 2;
+
+	/**
+	 * The number of connections per host which are kept alive for reuse if
+	 * not configured otherwise.
+	 */
+	public static final int DEFAULT_MAX_IDLE_CONNECTIONS_PER_HOST = 2;
+
+	/**
+	 * The number of downloaded tiles which may wait for decoding
+	 */
+	private static final int DECODE_QUEUE_CAPACITY = 2;
+
+	/**
+	 * The number of decoded tiles which may wait for publishing
+	 */
+	private static final int PUBLISH_QUEUE_CAPACITY = 4;
+
+	/**
+	 * The initial size of the download buffers, big enough for most tiles
+	 */
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	/**
+	 * The number of bytes the persistent tile cache may occupy
+	 */
+	public static final int DEFAULT_DISK_CACHE_SIZE = 8 * 1024 * 1024;
+
+	/**
+	 * The number of bytes the tile cache may occupy in the record management
+	 * system, used if there is no file system
+	 */
+	public static final int DEFAULT_RECORD_STORE_CACHE_SIZE = 1024 * 1024;
+
 	/**
 	 * Creates a new instance of DefaultTileFactory using the spcified
 	 * TileFactoryInfo
@@ -42,13 +92,163 @@ public abstract class AbstractTileFactory extends TileFactory {
 	 *            a TileFactoryInfo to configure this TileFactory
 	 */
 	public AbstractTileFactory(TileFactoryInfo info) {
+		this(info, DEFAULT_WORKER_COUNT);
+	}
+
+	/**
+	 * Creates a new instance of DefaultTileFactory using the spcified
+	 * TileFactoryInfo and a pool of download workers.
+	 * 
+	 * @param info
+	 *            a TileFactoryInfo to configure this TileFactory
+	 * @param workerCount
+	 *            the number of threads downloading tiles in parallel
+	 */
+	public AbstractTileFactory(TileFactoryInfo info, int workerCount) {
 		super(info);
-		TileRunner tr = new TileRunner();
-		Thread trt = new Thread(tr);
-		trt.start();
+		if (workerCount < 1) {
+			throw new IllegalArgumentException();
+		}
+		bufferPool = new ByteBufferPool(workerCount + DECODE_QUEUE_CAPACITY
+				+ 1, BUFFER_SIZE);
+		providerId = (info.getProvider() + info.getName()).hashCode();
+		persistentCache = createPersistentCache(info);
+		// the persistent cache is only asked by the workers, the memory cache
+		// is read while painting and must not block
+		tileCache = new LRUMemoryCache(getMemoryBudget(info));
+		decodeStage.start();
+		publishStage.start();
+		workers = new TileRunner[workerCount];
+		for (int i = 0; i < workerCount; i++) {
+			workers[i] = new TileRunner();
+			new Thread(workers[i]).start();
+		}
 	}
 
-	private LRUMemoryCache tileCache =new LRUMemoryCache(null);
+	private TileRunner[] workers;
+
+	private ByteBufferPool bufferPool;
+
+	private StageMetrics fetchMetrics = new StageMetrics("fetch");
+
+	/**
+	 * Turns the downloaded bytes into an image. Decoding runs on its own
+	 * thread so that it does not hold up the next download.
+	 */
+	private PipelineStage decodeStage = new PipelineStage("decode",
+			DECODE_QUEUE_CAPACITY) {
+		boolean process(TileJob job) {
+			try {
+				job.image = Image.createImage(job.data, 0, job.length);
+			} catch (Throwable e) {
+				failed(job, e);
+				return false;
+			}
+			if (job.image == null) {
+				failed(job, new IOException("Could not decode tile"));
+				return false;
+			}
+			if (!publishStage.submit(job)) {
+				bufferPool.release(job.data);
+				job.data = null;
+				job.tile.setLoading(false);
+			}
+			return true;
+		}
+	};
+
+	/**
+	 * Hands the decoded image to the tile, which notifies its listeners.
+	 */
+	private PipelineStage publishStage = new PipelineStage("publish",
+			PUBLISH_QUEUE_CAPACITY) {
+		boolean process(TileJob job) {
+			Tile tile = job.tile;
+			tile.image = job.image;
+			tile.setLoaded(true);
+			tile.setLoading(false);
+			// charge the cache with the decoded image
+			tileCache.resize(tile.getKey());
+			if (persistentCache != null && !job.stored) {
+				byte[] copy = new byte[job.length];
+				System.arraycopy(job.data, 0, copy, 0, job.length);
+				persistentCache.put(tile.getKey(), copy);
+			}
+			bufferPool.release(job.data);
+			job.data = null;
+			return true;
+		}
+	};
+
+	private volatile boolean running = true;
+
+	private HttpConnectionManager connectionManager = new HttpConnectionManager(
+			DEFAULT_MAX_CONNECTIONS_PER_HOST,
+			DEFAULT_MAX_IDLE_CONNECTIONS_PER_HOST);
+
+	/**
+	 * The encoded tiles kept across restarts, null if the device offers no
+	 * place to put them
+	 */
+	private LRUCacheInterface persistentCache;
+
+	/**
+	 * The tiles in memory, the only cache looked at while painting
+	 */
+	private LRUMemoryCache tileCache;
+
+	/**
+	 * Put into the tile keys to tell apart the tiles of different providers
+	 */
+	private int providerId;
+
+	/**
+	 * Opens the persistent cache for this map provider. Tiles are stored in
+	 * the file system if the device supports JSR-75, otherwise in the record
+	 * management system.
+	 * 
+	 * @return the cache or null if there is no place to put it
+	 */
+	/**
+	 * The memory cache gets half of the heap, but never less than a screen
+	 * full of decoded tiles plus a border, otherwise painting one viewport
+	 * would evict its own tiles.
+	 */
+	private static int getMemoryBudget(TileFactoryInfo info) {
+		int tileSize = info.getTileSize(info.getDefaultZoomLevel());
+		Display d = Display.getInstance();
+		int columns = d.getDisplayWidth() / tileSize + 2;
+		int rows = d.getDisplayHeight() / tileSize + 2;
+		int tileBytes = tileSize * tileSize * Tile.BYTES_PER_PIXEL
+				+ Tile.EMPTY_SIZE;
+		int viewport = columns * rows * tileBytes;
+		int heap = (int) (Runtime.getRuntime().totalMemory() / 2);
+		return Math.max(heap, viewport);
+	}
+
+	private static LRUCacheInterface createPersistentCache(TileFactoryInfo info) {
+		String name = "tiles" + info.getProvider() + info.getName();
+		String dir = LRUDiskCache.getDefaultDirectory();
+		if (dir != null) {
+			try {
+				return new LRUDiskCache(null, dir + name + "/",
+						DEFAULT_DISK_CACHE_SIZE);
+			} catch (Exception e) {
+				System.out.println("No tile cache in the file system: " + e);
+			}
+		}
+		if (name.length() > LRURecordStoreCache.MAX_NAME_LENGTH) {
+			name = name.substring(0, LRURecordStoreCache.MAX_NAME_LENGTH);
+		}
+		try {
+			return new LRURecordStoreCache(null, RMSRecordStorage.FACTORY,
+					name, LRURecordStoreCache.DEFAULT_SHARD_COUNT,
+					DEFAULT_RECORD_STORE_CACHE_SIZE);
+		} catch (Exception e) {
+			System.out.println("No persistent tile cache: " + e);
+			return null;
+		}
+	}
 
 	/**
 	 * Returns the tile that is located at the given tilePoint for this zoom.
@@ -67,16 +267,16 @@ public abstract class AbstractTileFactory extends TileFactory {
 	private Tile getTile(int tpx, int tpy, int zoom, boolean eagerLoad) {
 		// wrap the tiles horizontally --> mod the X with the max width
 		// and use that
-		System.out.println("Get Tile " + tpx + "/" + tpy + "/" + zoom);
 		int tileX = tpx;// tilePoint.getX();
-		int numTilesWide = (int) getMapSize(zoom).getWidth();
+		int numTilesWide = getInfo().getMapWidthInTilesAtZoom(zoom);
 		if (tileX < 0) {
 			tileX = numTilesWide - (Math.abs(tileX) % numTilesWide);
 		}
 
 		tileX = tileX % numTilesWide;
 		int tileY = tpy;
-		String url = getTileUrl(tileX, tileY, zoom);
+		// the url is only built by the tile once it is downloaded
+		long key = Tile.key(providerId, tileX, tileY, zoom);
 
 		int pri = Tile.HIGH;
 		if (!eagerLoad) {
@@ -85,15 +285,20 @@ public abstract class AbstractTileFactory extends TileFactory {
 		Tile tile = null;
 		// System.out.println("testing for validity: " + tilePoint + " zoom = "
 		// + zoom);
-		tile = (Tile) tileCache.get(url);
+		// only the memory cache, a worker looks into the persistent cache
+		tile = (Tile) tileCache.get(key);
 		if (tile==null) {
 			if (!GeoUtil.isValidTile(tileX, tileY, zoom, getInfo())) {
 				tile = new Tile(tileX, tileY, zoom);
 			} else {
-				tile = new Tile(tileX, tileY, zoom, url, pri, this);
+				tile = new Tile(tileX, tileY, zoom, key, pri, this);
 				startLoading(tile);
 			}
-			tileCache.put(url, tile);
+			tileCache.put(key, tile);
+		} else if (tile.isCancelled()) {
+			// it was dropped while out of view, request it again
+			tile.setPriority(pri);
+			startLoading(tile);
 		} else {
 			// if its in the map but is low and isn't loaded yet
 			// but we are in high mode
@@ -119,20 +324,40 @@ public abstract class AbstractTileFactory extends TileFactory {
         return url;
     }
 
-	private static PriorityQueue tileQueue = new PriorityQueue(5,
+	/**
+	 * Score added to tiles which are only prefetched (priority LOW)
+	 */
+	private static final int PREFETCH_PENALTY = 64 * 64;
+
+	/**
+	 * Score added per zoom level a tile is away from the viewed zoom level
+	 */
+	private static final int ZOOM_PENALTY = 16 * 64;
+
+	/**
+	 * The viewport is only rescored after its center moved at least this
+	 * fraction of a tile
+	 */
+	private static final int RESCORE_FRACTION = 4;
+
+	/**
+	 * Number of tiles around the visible ones which are still loaded
+	 */
+	private static final int KEEP_MARGIN = 1;
+
+	private double viewCenterX;
+	private double viewCenterY;
+	private int viewZoom = -1;
+
+	/**
+	 * The range of tiles which are visible or adjacent to the viewport
+	 */
+	private int keepMinX, keepMinY, keepMaxX, keepMaxY;
+
+	private PriorityQueue tileQueue = new PriorityQueue(5,
 			new Comparator() {
 				public int compare(Object ob1, Object ob2) {
-					Tile o1 = (Tile) ob1;
-					Tile o2 = (Tile) ob2;
-					if (o1.getPriority() == Tile.LOW
-							&& o2.getPriority() == Tile.HIGH) {
-						return 1;
-					}
-					if (o1.getPriority() == Tile.HIGH
-							&& o2.getPriority() == Tile.LOW) {
-						return -1;
-					}
-					return 0;
+					return ((Tile) ob1).getScore() - ((Tile) ob2).getScore();
 				}
 
 				public boolean equals(Object obj) {
@@ -140,31 +365,249 @@ public abstract class AbstractTileFactory extends TileFactory {
 				}
 			});
 
+	private PriorityQueue.Prioritizer rescorer = new PriorityQueue.Prioritizer() {
+		public boolean prioritize(HeapElement o) {
+			Tile tile = (Tile) o;
+			if (isStale(tile)) {
+				tile.setLoading(false);
+				tile.setCancelled(true);
+				return false;
+			}
+			tile.setScore(score(tile));
+			return true;
+		}
+	};
+
 	public synchronized void startLoading(Tile tile) {
 		if (tile.isLoading()) {
-			System.out.println("already loading. bailing");
 			return;
 		}
 		tile.setLoading(true);
+		tile.setCancelled(false);
+		tile.setScore(score(tile));
 		try {
-			System.out.println("adding tile to queue");
 			tileQueue.add(tile);
 		} catch (Exception ex) {
 			ex.printStackTrace();
 		}
 	}
 
+	/**
+	 * Rescores all queued tiles by their distance to the new center of the
+	 * viewport. Tiles which are neither visible nor adjacent to the viewport
+	 * anymore are dropped from the queue, and downloads of such tiles are
+	 * aborted. Small moves are ignored, as they hardly change the order.
+	 */
+	public synchronized void viewportChanged(Rectangle viewportBounds, int zoom) {
+		double cx = viewportBounds.getCenterX();
+		double cy = viewportBounds.getCenterY();
+		int size = getTileSize(zoom);
+		double minMove = size / RESCORE_FRACTION;
+		if (zoom == viewZoom && Math.abs(cx - viewCenterX) < minMove
+				&& Math.abs(cy - viewCenterY) < minMove) {
+			return;
+		}
+		viewCenterX = cx;
+		viewCenterY = cy;
+		viewZoom = zoom;
+		keepMinX = (int) Math.floor(viewportBounds.getX() / size) - KEEP_MARGIN;
+		keepMinY = (int) Math.floor(viewportBounds.getY() / size) - KEEP_MARGIN;
+		keepMaxX = (int) Math.floor((viewportBounds.getX()
+				+ viewportBounds.getWidth() - 1) / size) + KEEP_MARGIN;
+		keepMaxY = (int) Math.floor((viewportBounds.getY()
+				+ viewportBounds.getHeight() - 1) / size) + KEEP_MARGIN;
+		tileQueue.reorder(rescorer);
+		for (int i = 0; i < workers.length; i++) {
+			workers[i].abortIfStale();
+		}
+	}
+
+	/**
+	 * @return true if the tile is neither visible nor next to the viewport.
+	 *         Tiles wrapped around horizontally are always kept.
+	 */
+	private boolean isStale(Tile tile) {
+		if (viewZoom < 0) {
+			return false;
+		}
+		if (tile.getZoom() != viewZoom) {
+			return true;
+		}
+		return tile.getY() < keepMinY || tile.getY() > keepMaxY
+				|| ((tile.getX() < keepMinX || tile.getX() > keepMaxX)
+						&& keepMinX >= 0 && keepMaxX < getInfo()
+						.getMapWidthInTilesAtZoom(viewZoom));
+	}
+
+	/**
+	 * Computes the loading score of a tile: the squared distance between the
+	 * tile center and the viewport center in 1/8 tiles, plus a penalty for
+	 * each zoom level the tile is away from the viewed one.
+	 */
+	private int score(Tile tile) {
+		int score = tile.getPriority() == Tile.LOW ? PREFETCH_PENALTY : 0;
+		if (viewZoom < 0) {
+			return score;
+		}
+		int dz = viewZoom - tile.getZoom();
+		// the viewport center in tiles at the zoom level of the tile
+		double scale = dz >= 0 ? (double) (1 << dz) : 1.0 / (1 << -dz);
+		double size = getTileSize(tile.getZoom());
+		double dx = (tile.getX() + 0.5 - viewCenterX * scale / size) * 8;
+		double dy = (tile.getY() + 0.5 - viewCenterY * scale / size) * 8;
+		double distance = dx * dx + dy * dy;
+		if (distance > Integer.MAX_VALUE / 4) {
+			distance = Integer.MAX_VALUE / 4;
+		}
+		return score + (int) distance + Math.abs(dz) * ZOOM_PENALTY;
+	}
+
+	/**
+	 * @return the number of download workers of this factory
+	 */
+	public int getWorkerCount() {
+		return workers.length;
+	}
+
+	/**
+	 * Sets how many tiles may be downloaded concurrently from a single host.
+	 * 
+	 * @param max
+	 *            the maximum number of connections per host
+	 */
+	public void setMaxConnectionsPerHost(int max) {
+		connectionManager.setMaxPerHost(max);
+	}
+
+	/**
+	 * @return the maximum number of concurrent connections per host
+	 */
+	public int getMaxConnectionsPerHost() {
+		return connectionManager.getMaxPerHost();
+	}
+
+	/**
+	 * Sets how many connections per host are kept open for reuse once the
+	 * downloads are done.
+	 * 
+	 * @param max
+	 *            the maximum number of idle connections per host
+	 */
+	public void setMaxIdleConnectionsPerHost(int max) {
+		connectionManager.setMaxIdlePerHost(max);
+	}
+
+	/**
+	 * @return the connection manager of this factory, e.g. to read its
+	 *         latency statistics
+	 */
+	public HttpConnectionManager getConnectionManager() {
+		return connectionManager;
+	}
+
+	/**
+	 * Stops all download workers and saves the persistent cache. Tiles still
+	 * waiting in the queue are not loaded anymore, downloads in progress are
+	 * finished.
+	 */
+	public void dispose() {
+		running = false;
+		tileQueue.close();
+		connectionManager.close();
+		decodeStage.close();
+		publishStage.close();
+		if (persistentCache == null) {
+			return;
+		}
+		try {
+			persistentCache.flush();
+		} catch (Exception e) {
+			System.out.println("could not flush the tile cache: " + e);
+		}
+	}
+
+	/**
+	 * @return the statistics of the download stage
+	 */
+	public StageMetrics getFetchMetrics() {
+		return fetchMetrics;
+	}
+
+	/**
+	 * @return the statistics of the decoding stage
+	 */
+	public StageMetrics getDecodeMetrics() {
+		return decodeStage.getMetrics();
+	}
+
+	/**
+	 * @return the statistics of the publishing stage
+	 */
+	public StageMetrics getPublishMetrics() {
+		return publishStage.getMetrics();
+	}
+
+	/**
+	 * Reports a tile which could not be decoded. It is not downloaded again
+	 * unless it is requested anew.
+	 */
+	private void failed(TileJob job, Throwable e) {
+		bufferPool.release(job.data);
+		job.data = null;
+		Tile tile = job.tile;
+		System.err.println("Failed to decode a tile at url: " + tile.getURL());
+		Object oldError = tile.getError();
+		tile.setError(e);
+		tile.firePropertyChange("loadingError", oldError, e);
+		tile.firePropertyChange("unrecoverableError", null, e);
+		tile.setLoading(false);
+	}
+
+	/**
+	 * Raises the priority of a tile inside the queue lock
+	 */
+	private PriorityQueue.Prioritizer promoter = new PriorityQueue.Prioritizer() {
+		public boolean prioritize(HeapElement o) {
+			Tile tile = (Tile) o;
+			tile.setPriority(Tile.HIGH);
+			tile.setScore(score(tile));
+			return true;
+		}
+	};
+
+	/**
+	 * Lowers the priority of a tile inside the queue lock
+	 */
+	private PriorityQueue.Prioritizer demoter = new PriorityQueue.Prioritizer() {
+		public boolean prioritize(HeapElement o) {
+			Tile tile = (Tile) o;
+			tile.setPriority(Tile.LOW);
+			tile.setScore(score(tile));
+			return true;
+		}
+	};
+
 	/**
 	 * Increase the priority of this tile so it will be loaded sooner.
 	 */
 	public synchronized void promote(Tile tile) {
-		try {
-			if (tileQueue.remove(tile)) {
-				tile.setPriority(Tile.HIGH);
-				tileQueue.add(tile);
-			}
-		} catch (Exception ex) {
-			ex.printStackTrace();
+		tileQueue.update(tile, promoter);
+	}
+
+	/**
+	 * Decrease the priority of this tile so that other tiles are loaded first.
+	 */
+	public synchronized void demote(Tile tile) {
+		tileQueue.update(tile, demoter);
+	}
+
+	/**
+	 * Removes this tile from the loading queue. A tile which is already being
+	 * downloaded is not affected.
+	 */
+	public synchronized void cancel(Tile tile) {
+		if (tileQueue.remove(tile)) {
+			tile.setLoading(false);
 		}
 	}
 
@@ -172,68 +615,178 @@ public abstract class AbstractTileFactory extends TileFactory {
 	 * An inner class which actually loads the tiles. Used by the thread queue.
 	 * Subclasses can override this if necessary.
 	 */
-	private class TileRunner implements Runnable {
+	private class TileRunner implements Runnable, ByteBufferPool.Abort {
+
+		/**
+		 * The tile currently downloaded by this worker
+		 */
+		private Tile current = null;
+
+		/**
+		 * Set when the current tile went out of view, the worker stops
+		 * downloading it at the next chance and closes the connection itself
+		 */
+		private boolean aborted = false;
 
 		/**
 		 * implementation of the Runnable interface.
 		 */
 		public void run() {
+			while (running) {
+				final Tile tile = (Tile) tileQueue.poll();
+				if (tile == null) {
+					break;
+				}
+				fetchMetrics.setQueueDepth(tileQueue.size());
+				byte[] stored = loadStored(tile);
+				if (stored != null) {
+					// already on the device, only needs decoding
+					decode(new TileJob(tile, stored, stored.length, true));
+					continue;
+				}
+				String host = HttpConnectionManager.getHost(tile.getURL());
+				if (!connectionManager.acquire(host)) {
+					tile.setLoading(false);
+					break;
+				}
+				TileJob job;
+				try {
+					job = load(tile);
+				} finally {
+					connectionManager.release(host);
+				}
+				// the connection slot is free while waiting for the decoder
+				if (job != null) {
+					decode(job);
+				}
+			}
+		}
+
+		/**
+		 * Looks the tile up in the persistent cache. This may block on the
+		 * file system or record store, so it is only done by the workers.
+		 * 
+		 * @return the encoded image or null if it has to be downloaded
+		 */
+		private byte[] loadStored(Tile tile) {
+			if (persistentCache == null) {
+				return null;
+			}
+			Object stored = persistentCache.get(tile.getKey());
+			return stored instanceof byte[] ? (byte[]) stored : null;
+		}
+
+		/**
+		 * Marks the current download as aborted if its tile has gone out of
+		 * view. Only the flag is set, closing the connection could block the
+		 * caller, which is the EDT.
+		 */
+		synchronized void abortIfStale() {
+			if (current == null || aborted || !isStale(current)) {
+				return;
+			}
+			aborted = true;
+		}
+
+		private synchronized void begin(Tile tile) {
+			current = tile;
+			aborted = false;
+		}
+
+		public synchronized boolean isAborted() {
+			return aborted;
+		}
+
+		private synchronized void finish() {
+			current = null;
+		}
+
+		/**
+		 * Hands the job to the decode stage, waiting while it is busy.
+		 */
+		private void decode(TileJob job) {
+			if (!decodeStage.submit(job)) {
+				bufferPool.release(job.data);
+				job.data = null;
+				job.tile.setLoading(false);
+			}
+		}
+
+		/**
+		 * Downloads the tile, retrying a few times.
+		 * 
+		 * @return the downloaded tile or null if it failed or was aborted
+		 */
+		private TileJob load(Tile tile) {
 			/*
 			 * 3 strikes and you're out. Attempt to load the url. If it fails,
 			 * decrement the number of tries left and try again. Log failures.
 			 * If I run out of try s just get out. This way, if there is some
 			 * kind of serious failure, I can get out and let other tiles try to
-			 * load.
+			 * load. Only the download is retried here, decoding happens in the
+			 * next stage.
 			 */
-			do {
-				final Tile tile = (Tile) tileQueue.poll();
-
-				int trys = 3;
-				while (!tile.isLoaded() && trys > 0) {
-					try {
-						Image img = null;
-						String uri = tile.getURL();
-						img = loadTileThroughHttp(uri);
-						if (img == null) {
-							System.out.println("error loading: " + uri);
-							trys--;
-						} else {
-							// SwingUtilities.invokeAndWait(new Runnable() {
-							tile.image = img;
-							tile.setLoaded(true);
-						}
-						System.out.println("Loaded " + uri);
-					} catch (OutOfMemoryError memErr) {
-					} catch (Throwable e) {
-						System.err.println("Failed to load a tile at url: "
-								+ tile.getURL());
-						e.printStackTrace();
-						Object oldError = tile.getError();
-						tile.setError(e);
-						tile.firePropertyChange("loadingError", oldError, e);
-						if (trys == 0) {
-							tile.firePropertyChange("unrecoverableError", null,
-									e);
-						} else {
-							trys--;
-						}
+			begin(tile);
+			long started = System.currentTimeMillis();
+			TileJob job = null;
+			int trys = 3;
+			while (job == null && trys > 0 && !isAborted()) {
+				try {
+					job = loadTileThroughHttp(tile);
+				} catch (Throwable e) {
+					if (isAborted()) {
+						break;
+					}
+					System.err.println("Failed to load a tile at url: "
+							+ tile.getURL());
+					e.printStackTrace();
+					Object oldError = tile.getError();
+					tile.setError(e);
+					tile.firePropertyChange("loadingError", oldError, e);
+					trys--;
+					if (trys == 0) {
+						tile.firePropertyChange("unrecoverableError", null, e);
 					}
 				}
+			}
+			fetchMetrics.record(System.currentTimeMillis() - started,
+					job != null);
+			finish();
+			if (job == null) {
+				if (isAborted()) {
+					tile.setCancelled(true);
+				}
 				tile.setLoading(false);
-			} while (true);
+			}
+			return job;
 		}
 
-		private Image loadTileThroughHttp(String url) throws IOException {
-			HttpConnection c = (HttpConnection) Connector.open(url);
-			c.setRequestProperty("User-Agent",
-			"Mozilla/5.0 (X11; U; Linux i586; en-US; rv:1.7.3) Gecko/20040924 Epiphany/1.4.4 (Ubuntu)");
-			int status = c.getResponseCode();
-			if (status != HttpConnection.HTTP_OK) {
-				throw new IOException("Response status not OK [" + status + "]");
+		private TileJob loadTileThroughHttp(Tile tile) throws IOException {
+			String url = tile.getURL();
+			long started = System.currentTimeMillis();
+			HttpConnection c = null;
+			InputStream ins = null;
+			boolean ok = false;
+			try {
+				c = connectionManager.open(url, HttpConnectionManager
+						.getHost(url));
+				if (isAborted()) {
+					throw new InterruptedIOException("Download aborted");
+				}
+				int status = c.getResponseCode();
+				if (status != HttpConnection.HTTP_OK) {
+					throw new IOException("Response status not OK [" + status
+							+ "]");
+				}
+				ins = c.openInputStream();
+				int[] length = new int[1];
+				byte[] data = bufferPool.readFully(ins, c.getLength(), length,
+						this);
+				ok = true;
+				return new TileJob(tile, data, length[0], false);
+			} finally {
+				connectionManager.close(c, ins, started, ok);
 			}
-			InputStream ins = c.openInputStream();
-			Image i = Image.createImage(ins);
-			return i;
 		}
 	}
 }
@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2009 joerg <schreibubi@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.schreibubi.kartlaegga.mapviewer.tilefactories;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Keeps a few byte arrays for the raw tile data, so that downloading a tile
+ * does not allocate a new buffer each time.
+ *
+ * @author joerg
+ */
+class ByteBufferPool {
+
+	/**
+	 * Asked between the reads of
+	 * {@link ByteBufferPool#readFully(InputStream, long, int[], Abort)}
+	 * whether to give up
+	 */
+	interface Abort {
+		boolean isAborted();
+	}
+
+	private byte[][] free;
+
+	private int count = 0;
+
+	private int initialSize;
+
+	/**
+	 * @param maxBuffers
+	 *            the number of buffers kept for reuse
+	 * @param initialSize
+	 *            the size of newly allocated buffers
+	 */
+	ByteBufferPool(int maxBuffers, int initialSize) {
+		free = new byte[maxBuffers][];
+		this.initialSize = initialSize;
+	}
+
+	/**
+	 * @param minSize
+	 *            the minimum size needed
+	 * @return a buffer of at least the given size
+	 */
+	synchronized byte[] acquire(int minSize) {
+		for (int i = count - 1; i >= 0; i--) {
+			if (free[i].length >= minSize) {
+				byte[] b = free[i];
+				free[i] = free[--count];
+				free[count] = null;
+				return b;
+			}
+		}
+		return new byte[Math.max(minSize, initialSize)];
+	}
+
+	/**
+	 * Returns a buffer to the pool. If the pool is full the smallest buffer is
+	 * dropped.
+	 *
+	 * @param b
+	 *            the buffer, may be null
+	 */
+	synchronized void release(byte[] b) {
+		if (b == null) {
+			return;
+		}
+		if (count < free.length) {
+			free[count++] = b;
+			return;
+		}
+		int smallest = 0;
+		for (int i = 1; i < count; i++) {
+			if (free[i].length < free[smallest].length) {
+				smallest = i;
+			}
+		}
+		if (free[smallest].length < b.length) {
+			free[smallest] = b;
+		}
+	}
+
+	/**
+	 * Reads the stream until its end into a pooled buffer.
+	 *
+	 * @param in
+	 *            the stream
+	 * @param expectedLength
+	 *            the length of the data if known, otherwise -1
+	 * @param length
+	 *            receives the number of bytes read in its first element
+	 * @param abort
+	 *            asked after each read, the reading stops with an
+	 *            InterruptedIOException once it says so
+	 * @return the buffer holding the data, to be given back with
+	 *         {@link #release(byte[])}
+	 * @throws IOException
+	 */
+	byte[] readFully(InputStream in, long expectedLength, int[] length,
+			Abort abort) throws IOException {
+		byte[] b = acquire(expectedLength > 0 ? (int) expectedLength + 1
+				: initialSize);
+		int len = 0;
+		try {
+			int n;
+			while ((n = in.read(b, len, b.length - len)) != -1) {
+				if (abort.isAborted()) {
+					throw new InterruptedIOException("Read aborted");
+				}
+				len += n;
+				if (len == b.length) {
+					byte[] larger = acquire(b.length * 2);
+					System.arraycopy(b, 0, larger, 0, len);
+					release(b);
+					b = larger;
+				}
+			}
+		} catch (IOException e) {
+			release(b);
+			throw e;
+		}
+		length[0] = len;
+		return b;
+	}
+}
@@ -0,0 +1,264 @@
+/**
+ * Copyright (C) 2009 joerg <schreibubi@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.schreibubi.kartlaegga.mapviewer.tilefactories;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Hashtable;
+
+import javax.microedition.io.Connector;
+import javax.microedition.io.HttpConnection;
+
+/**
+ * Opens and closes the http connections of the tile workers of one factory.
+ * 
+ * A MIDP <code>HttpConnection</code> carries exactly one request, the socket
+ * below it can only be reused by the platform if keep-alive was requested and
+ * the stream and the connection are closed as soon as the response has been
+ * read. The manager takes care of both, limits the number of concurrent
+ * connections per host and asks for keep-alive only on the first
+ * <code>maxIdlePerHost</code> of them, so that not more sockets than that
+ * stay open once the downloads are done.
+ * 
+ * @author joerg
+ */
+public class HttpConnectionManager {
+
+	private static final String USER_AGENT = "Mozilla/5.0 (X11; U; Linux i586; en-US; rv:1.7.3) Gecko/20040924 Epiphany/1.4.4 (Ubuntu)";
+
+	private int maxPerHost;
+
+	private int maxIdlePerHost;
+
+	private Hashtable active = new Hashtable();
+
+	private boolean closed = false;
+
+	private int requests = 0;
+	private int failures = 0;
+	private long totalLatency = 0;
+	private long maxLatency = 0;
+
+	/**
+	 * @param maxPerHost
+	 *            the maximum number of concurrent connections per host
+	 * @param maxIdlePerHost
+	 *            the maximum number of connections per host which are kept
+	 *            alive after use
+	 */
+	HttpConnectionManager(int maxPerHost, int maxIdlePerHost) {
+		setMaxPerHost(maxPerHost);
+		setMaxIdlePerHost(maxIdlePerHost);
+	}
+
+	synchronized void setMaxPerHost(int maxPerHost) {
+		if (maxPerHost < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.maxPerHost = maxPerHost;
+		notifyAll();
+	}
+
+	public synchronized int getMaxPerHost() {
+		return maxPerHost;
+	}
+
+	synchronized void setMaxIdlePerHost(int maxIdlePerHost) {
+		if (maxIdlePerHost < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.maxIdlePerHost = maxIdlePerHost;
+	}
+
+	public synchronized int getMaxIdlePerHost() {
+		return maxIdlePerHost;
+	}
+
+	/**
+	 * Blocks until a connection slot for the given host is free.
+	 * 
+	 * @param host
+	 *            the host to connect to
+	 * @return true if a slot was acquired, false if the manager was closed
+	 *         while waiting
+	 */
+	synchronized boolean acquire(String host) {
+		while (!closed && count(host) >= maxPerHost) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+		if (closed) {
+			return false;
+		}
+		active.put(host, new Integer(count(host) + 1));
+		return true;
+	}
+
+	/**
+	 * Gives back a slot obtained by {@link #acquire(String)}.
+	 * 
+	 * @param host
+	 *            the host the connection was made to
+	 */
+	synchronized void release(String host) {
+		int c = count(host) - 1;
+		if (c <= 0) {
+			active.remove(host);
+		} else {
+			active.put(host, new Integer(c));
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Wakes up all waiting workers and refuses further slots.
+	 */
+	synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	/**
+	 * Opens a GET request to the url. The caller must hold a slot for the
+	 * host and has to pass the connection to
+	 * {@link #close(HttpConnection, InputStream, long, boolean)} when done.
+	 * 
+	 * @param url
+	 *            the url to request
+	 * @param host
+	 *            the host of the url
+	 * @return the connection, not yet connected
+	 * @throws IOException
+	 */
+	HttpConnection open(String url, String host) throws IOException {
+		boolean keepAlive;
+		synchronized (this) {
+			keepAlive = count(host) <= maxIdlePerHost;
+		}
+		HttpConnection c = (HttpConnection) Connector.open(url);
+		try {
+			c.setRequestProperty("User-Agent", USER_AGENT);
+			c.setRequestProperty("Connection", keepAlive ? "keep-alive"
+					: "close");
+		} catch (IOException e) {
+			close(c, null);
+			throw e;
+		}
+		return c;
+	}
+
+	/**
+	 * Closes the stream and the connection of a request and records how long
+	 * it took.
+	 * 
+	 * @param c
+	 *            the connection, may be null
+	 * @param in
+	 *            the response stream, may be null
+	 * @param started
+	 *            the time the request was started at
+	 * @param ok
+	 *            true if the response was read completely
+	 */
+	void close(HttpConnection c, InputStream in, long started, boolean ok) {
+		close(c, in);
+		long latency = System.currentTimeMillis() - started;
+		synchronized (this) {
+			requests++;
+			if (!ok) {
+				failures++;
+			}
+			totalLatency += latency;
+			if (latency > maxLatency) {
+				maxLatency = latency;
+			}
+		}
+	}
+
+	private static void close(HttpConnection c, InputStream in) {
+		if (in != null) {
+			try {
+				in.close();
+			} catch (IOException e) {
+			}
+		}
+		if (c != null) {
+			try {
+				c.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * @return the number of requests made so far
+	 */
+	public synchronized int getRequestCount() {
+		return requests;
+	}
+
+	/**
+	 * @return the number of requests which failed
+	 */
+	public synchronized int getFailureCount() {
+		return failures;
+	}
+
+	/**
+	 * @return the mean time in ms from opening a connection until the
+	 *         response was read
+	 */
+	public synchronized long getAverageLatency() {
+		return requests == 0 ? 0 : totalLatency / requests;
+	}
+
+	/**
+	 * @return the longest time in ms a request took
+	 */
+	public synchronized long getMaxLatency() {
+		return maxLatency;
+	}
+
+	private int count(String host) {
+		Integer c = (Integer) active.get(host);
+		return c == null ? 0 : c.intValue();
+	}
+
+	/**
+	 * Extracts the host (including the port, if any) from an url like
+	 * <code>http://tile.openstreetmap.org/11/1085/650.png</code>.
+	 * 
+	 * @param url
+	 *            the url
+	 * @return the host part of the url
+	 */
+	static String getHost(String url) {
+		int start = url.indexOf("://");
+		start = start < 0 ? 0 : start + 3;
+		int end = url.indexOf('/', start);
+		int query = url.indexOf('?', start);
+		if (end < 0 || (query >= 0 && query < end)) {
+			end = query;
+		}
+		if (end < 0) {
+			end = url.length();
+		}
+		return url.substring(start, end);
+	}
+}
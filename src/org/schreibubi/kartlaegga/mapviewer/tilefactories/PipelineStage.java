@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2009 joerg <schreibubi@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.schreibubi.kartlaegga.mapviewer.tilefactories;
+
+import org.schreibubi.kartlaegga.mapviewer.BoundedQueue;
+
+/**
+ * A stage of the tile loading pipeline: a thread working off a bounded queue
+ * of {@link TileJob}s. Submitting blocks while the queue is full, so a slow
+ * stage throttles the stages in front of it.
+ * 
+ * @author joerg
+ */
+abstract class PipelineStage implements Runnable {
+
+	private BoundedQueue queue;
+
+	private StageMetrics metrics;
+
+	/**
+	 * @param name
+	 *            the name of the stage, used for the metrics
+	 * @param capacity
+	 *            the number of jobs which may wait for this stage
+	 */
+	PipelineStage(String name, int capacity) {
+		queue = new BoundedQueue(capacity);
+		metrics = new StageMetrics(name);
+	}
+
+	/**
+	 * Starts the thread of this stage.
+	 */
+	void start() {
+		new Thread(this).start();
+	}
+
+	/**
+	 * Hands a job to this stage, waiting while the queue is full.
+	 * 
+	 * @return false if the stage has been closed
+	 */
+	boolean submit(TileJob job) {
+		boolean queued = queue.put(job);
+		metrics.setQueueDepth(queue.size());
+		return queued;
+	}
+
+	/**
+	 * Stops the stage, jobs still waiting are dropped.
+	 */
+	void close() {
+		queue.close();
+	}
+
+	StageMetrics getMetrics() {
+		return metrics;
+	}
+
+	public void run() {
+		while (true) {
+			TileJob job = (TileJob) queue.take();
+			if (job == null) {
+				break;
+			}
+			metrics.setQueueDepth(queue.size());
+			long started = System.currentTimeMillis();
+			boolean ok = false;
+			try {
+				ok = process(job);
+			} catch (Throwable t) {
+				t.printStackTrace();
+				// let the tile be requested again
+				job.tile.setLoading(false);
+			}
+			metrics.record(System.currentTimeMillis() - started, ok);
+		}
+	}
+
+	/**
+	 * Does the work of this stage on one job.
+	 * 
+	 * @return true if the job succeeded
+	 */
+	abstract boolean process(TileJob job);
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2009 joerg <schreibubi@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.schreibubi.kartlaegga.mapviewer.tilefactories;
+
+/**
+ * Timing and queue statistics of one stage of the tile loading pipeline.
+ *
+ * @author joerg
+ */
+public class StageMetrics {
+
+	private String name;
+
+	private int processed = 0;
+	private int failed = 0;
+	private long totalTime = 0;
+	private long maxTime = 0;
+	private int queueDepth = 0;
+	private int maxQueueDepth = 0;
+
+	StageMetrics(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @return the name of the stage
+	 */
+	public String getName() {
+		return name;
+	}
+
+	synchronized void record(long millis, boolean ok) {
+		processed++;
+		if (!ok) {
+			failed++;
+		}
+		totalTime += millis;
+		if (millis > maxTime) {
+			maxTime = millis;
+		}
+	}
+
+	synchronized void setQueueDepth(int depth) {
+		queueDepth = depth;
+		if (depth > maxQueueDepth) {
+			maxQueueDepth = depth;
+		}
+	}
+
+	/**
+	 * @return the number of tiles which passed this stage
+	 */
+	public synchronized int getProcessed() {
+		return processed;
+	}
+
+	/**
+	 * @return the number of tiles which failed in this stage
+	 */
+	public synchronized int getFailed() {
+		return failed;
+	}
+
+	/**
+	 * @return the mean time in ms the stage spent on a tile
+	 */
+	public synchronized long getAverageTime() {
+		return processed == 0 ? 0 : totalTime / processed;
+	}
+
+	/**
+	 * @return the longest time in ms the stage spent on a tile
+	 */
+	public synchronized long getMaxTime() {
+		return maxTime;
+	}
+
+	/**
+	 * @return the number of tiles waiting for this stage
+	 */
+	public synchronized int getQueueDepth() {
+		return queueDepth;
+	}
+
+	/**
+	 * @return the highest number of tiles that were waiting for this stage
+	 */
+	public synchronized int getMaxQueueDepth() {
+		return maxQueueDepth;
+	}
+
+	public synchronized String toString() {
+		return name + ": " + processed + " tiles, " + failed + " failed, avg "
+				+ getAverageTime() + "ms, max " + maxTime + "ms, queue "
+				+ queueDepth + " (max " + maxQueueDepth + ")";
+	}
+}
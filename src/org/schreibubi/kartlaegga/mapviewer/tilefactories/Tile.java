@@ -24,8 +24,11 @@
 
 package org.schreibubi.kartlaegga.mapviewer.tilefactories;
 
+import org.schreibubi.kartlaegga.mapviewer.HeapElement;
+import org.schreibubi.kartlaegga.mapviewer.PropertyChangeDispatcher;
 import org.schreibubi.kartlaegga.mapviewer.PropertyChangeEvent;
 import org.schreibubi.kartlaegga.mapviewer.PropertyChangeListener;
+import org.schreibubi.kartlaegga.mapviewer.cache.Sized;
 
 import com.sun.lwuit.Image;
 
@@ -37,23 +40,54 @@ import com.sun.lwuit.Image;
  * @author joshy
  */
 
-public class Tile {
+public class Tile implements HeapElement, Sized {
 	public final static int HIGH = 1;
 	public final static int LOW = 0;
 	private int priority = HIGH;
 
+	/**
+	 * Bytes per pixel of a decoded image
+	 */
+	static final int BYTES_PER_PIXEL = 4;
+
+	/**
+	 * Estimated size of a tile without image
+	 */
+	static final int EMPTY_SIZE = 64;
+
+	/**
+	 * The loading order of this tile, lower scores are loaded first
+	 */
+	private int score = 0;
+
+	/**
+	 * The slot of this tile in the loading queue, -1 if it is not queued
+	 */
+	private int heapIndex = -1;
+
 	private boolean isLoading = false;
 
+	/**
+	 * Set if loading was given up because the tile was not visible anymore
+	 */
+	private boolean cancelled = false;
+
 	/**
 	 * If an error occurs while loading a tile, store the exception here.
 	 */
 	private Throwable error;
 
 	/**
-	 * The url of the image to load for this tile
+	 * The url of the image to load for this tile, built when it is first
+	 * needed
 	 */
 	private String url;
 
+	/**
+	 * The packed position of this tile used as cache key
+	 */
+	private long key;
+
 	/**
 	 * Indicates that loading has succeeded. A PropertyChangeEvent will be fired
 	 * when the loading is completed
@@ -84,11 +118,11 @@ public class Tile {
 	}
 
 	/**
-	 * Create a new Tile that loads its data from the given URL. The URL must
-	 * resolve to an image
+	 * Create a new Tile that loads its data from the URL the factory gives for
+	 * its position. The URL must resolve to an image
 	 */
-	public Tile(int x, int y, int zoom, String url, int priority, TileFactory dtf) {
-		this.url = url;
+	public Tile(int x, int y, int zoom, long key, int priority, TileFactory dtf) {
+		this.key = key;
 		loaded = false;
 		this.zoom = zoom;
 		this.x = x;
@@ -187,6 +221,26 @@ public class Tile {
 		this.priority = priority;
 	}
 
+	/**
+	 * Gets the loading score of this tile. Tiles with a lower score are loaded
+	 * first.
+	 * 
+	 * @return the score
+	 */
+	public int getScore() {
+		return score;
+	}
+
+	/**
+	 * Sets the loading score of this tile.
+	 * 
+	 * @param score
+	 *            the score to set
+	 */
+	public void setScore(int score) {
+		this.score = score;
+	}
+
 	private PropertyChangeListener uniqueListener = null;
 
 	/**
@@ -202,17 +256,17 @@ public class Tile {
 		}
 	}
 
-	public void firePropertyChange(final String propertyName, final Object oldValue,
-			final Object newValue) {
-		final Tile t=this;
-		Thread execThread = new Thread() {
-			public void run() {
-				PropertyChangeEvent pce = new PropertyChangeEvent(t,
-						propertyName, oldValue, newValue);
-				uniqueListener.propertyChange(pce);
-			}
-		};
-		execThread.start();
+	/**
+	 * Queues the event for the listener on the shared dispatcher thread.
+	 */
+	public void firePropertyChange(String propertyName, Object oldValue,
+			Object newValue) {
+		PropertyChangeListener l = uniqueListener;
+		if (l != null) {
+			PropertyChangeDispatcher.getInstance().dispatch(l,
+					new PropertyChangeEvent(this, propertyName, oldValue,
+							newValue));
+		}
 	}
 
 	/**
@@ -233,7 +287,7 @@ public class Tile {
 	/**
 	 * @return the isLoading
 	 */
-	public boolean isLoading() {
+	public synchronized boolean isLoading() {
 		return isLoading;
 	}
 
@@ -241,10 +295,25 @@ public class Tile {
 	 * @param isLoading
 	 *            the isLoading to set
 	 */
-	public void setLoading(boolean isLoading) {
+	public synchronized void setLoading(boolean isLoading) {
 		this.isLoading = isLoading;
 	}
 
+	/**
+	 * @return true if loading of this tile was cancelled before it completed
+	 */
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @param cancelled
+	 *            the cancelled to set
+	 */
+	public synchronized void setCancelled(boolean cancelled) {
+		this.cancelled = cancelled;
+	}
+
 	/**
 	 * Gets the loading priority of this tile.
 	 * 
@@ -269,10 +338,58 @@ public class Tile {
 	 * 
 	 * @return
 	 */
-	public String getURL() {
+	public synchronized String getURL() {
+		if (url == null && dtf != null) {
+			url = dtf.getTileUrl(x, y, zoom);
+		}
 		return url;
 	}
 
+	/**
+	 * @return the key of this tile in the tile caches
+	 */
+	public long getKey() {
+		return key;
+	}
+
+	/**
+	 * Packs the position of a tile into a cache key, 8 bits for the map
+	 * provider, 6 bits for the zoom level and 25 bits each for x and y.
+	 * 
+	 * @param providerId
+	 *            tells apart the tiles of different map providers
+	 */
+	public static long key(int providerId, int x, int y, int zoom) {
+		return ((long) (providerId & 0xff) << 56)
+				| ((long) (zoom & 0x3f) << 50)
+				| ((long) (x & 0x1ffffff) << 25) | (y & 0x1ffffff);
+	}
+
+	public int getHeapIndex() {
+		return heapIndex;
+	}
+
+	public void setHeapIndex(int index) {
+		heapIndex = index;
+	}
+
+	/**
+	 * Estimates the memory taken by this tile from the size of its image. A
+	 * tile which is still loading is counted with the image it will get.
+	 */
+	public int getEstimatedSize() {
+		Image img = image;
+		if (img != null) {
+			return EMPTY_SIZE + img.getWidth() * img.getHeight()
+					* BYTES_PER_PIXEL;
+		}
+		if (dtf == null) {
+			return EMPTY_SIZE;
+		}
+		int size = dtf.getTileSize(zoom);
+		return EMPTY_SIZE + size * size * BYTES_PER_PIXEL;
+	}
+
 	public int getX() {
 		return x;
 	}
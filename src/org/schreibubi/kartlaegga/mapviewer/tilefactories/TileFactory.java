@@ -25,6 +25,7 @@
 package org.schreibubi.kartlaegga.mapviewer.tilefactories;
 
 import org.schreibubi.kartlaegga.extend.Point2D;
+import org.schreibubi.kartlaegga.extend.Rectangle;
 import org.schreibubi.kartlaegga.mapviewer.Dimension;
 import org.schreibubi.kartlaegga.mapviewer.GeoPosition;
 import org.schreibubi.kartlaegga.mapviewer.GeoUtil;
@@ -120,5 +121,30 @@ public abstract class TileFactory /*TODO extends AbstractBean*/ {
      * @param tile The tile to load.
      */
     public abstract void startLoading(Tile tile);
+
+    /**
+     * Returns the url the image of the given tile is downloaded from.
+     * @param x abscissa of the tile point
+     * @param y ordinate of the tile point
+     * @param zoom the zoom level
+     * @return a valid url to load the tile
+     */
+    public abstract String getTileUrl(int x, int y, int zoom);
+    
+    /**
+     * Tells the factory which part of the map is currently shown, so that it
+     * can load the tiles closest to the center first.
+     * @param viewportBounds the visible area in pixels of the world bitmap
+     * @param zoom the zoom level of the visible area
+     */
+    public void viewportChanged(Rectangle viewportBounds, int zoom) {
+    }
+    
+    /**
+     * Releases the resources held by this factory, e.g. the threads loading
+     * the tiles. The factory must not be used anymore afterwards.
+     */
+    public void dispose() {
+    }
     
 }
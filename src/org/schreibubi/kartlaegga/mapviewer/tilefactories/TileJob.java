@@ -0,0 +1,54 @@
+/**
+ * Copyright (C) 2009 joerg <schreibubi@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.schreibubi.kartlaegga.mapviewer.tilefactories;
+
+import com.sun.lwuit.Image;
+
+/**
+ * A tile passing through the loading pipeline together with its raw data and
+ * the decoded image.
+ * 
+ * @author joerg
+ */
+class TileJob {
+
+	final Tile tile;
+
+	/**
+	 * The encoded image, a pooled buffer
+	 */
+	byte[] data;
+
+	/**
+	 * The number of valid bytes in data
+	 */
+	int length;
+
+	Image image;
+
+	/**
+	 * Set if the data came from the persistent cache and need not be stored
+	 * again
+	 */
+	final boolean stored;
+
+	TileJob(Tile tile, byte[] data, int length, boolean stored) {
+		this.tile = tile;
+		this.data = data;
+		this.length = length;
+		this.stored = stored;
+	}
+}
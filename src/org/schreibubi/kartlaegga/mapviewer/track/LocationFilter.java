@@ -0,0 +1,188 @@
+/**
+ * Copyright (C) 2009 joerg <schreibubi@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.schreibubi.kartlaegga.mapviewer.track;
+
+import javax.microedition.location.Location;
+import javax.microedition.location.LocationListener;
+import javax.microedition.location.LocationProvider;
+import javax.microedition.location.QualifiedCoordinates;
+
+import org.schreibubi.kartlaegga.mapviewer.GeoUtil;
+
+/**
+ * Passes on only the fixes worth recording to another listener, usually the
+ * {@link TrackRecorder}. Each fix is only compared with the last one passed
+ * on, so the cost per fix is constant.
+ * 
+ * A fix is dropped if
+ * <ul>
+ * <li>it is invalid or less accurate than {@link #MAX_ACCURACY},</li>
+ * <li>it is not newer than the last fix,</li>
+ * <li>reaching it from the last fix would take more than
+ * {@link #MAX_SPEED}, which is a jump caused by reflected signals. After
+ * {@link #MAX_OUTLIERS} such fixes in a row the receiver is believed and the
+ * fix is passed on,</li>
+ * <li>the receiver is standing, reporting less than {@link #MOVING_SPEED},
+ * and the fix is within {@link #JITTER_RADIUS} of the last one.</li>
+ * </ul>
+ * 
+ * The fixes passed on are the original locations, JSR-179 gives no way to
+ * create a corrected one.
+ * 
+ * @author joerg
+ */
+public class LocationFilter implements LocationListener {
+
+	/**
+	 * The largest horizontal accuracy in meters a fix may have
+	 */
+	public static final float MAX_ACCURACY = 50;
+
+	/**
+	 * The fastest believable speed in m/s between two fixes
+	 */
+	public static final double MAX_SPEED = 15;
+
+	/**
+	 * The number of too fast fixes in a row after which the position is
+	 * believed
+	 */
+	public static final int MAX_OUTLIERS = 3;
+
+	/**
+	 * The slowest reported speed in m/s counted as moving
+	 */
+	public static final float MOVING_SPEED = 0.5f;
+
+	/**
+	 * The distance in meters a standing receiver may wander without a fix
+	 * being recorded
+	 */
+	public static final double JITTER_RADIUS = 5;
+
+	private final LocationListener listener;
+
+	private boolean hasLast = false;
+
+	private double lastLatitude;
+
+	private double lastLongitude;
+
+	private long lastTime;
+
+	private int outliers = 0;
+
+	private int passed = 0;
+
+	private int inaccurate = 0;
+
+	private int rejectedOutliers = 0;
+
+	private int jitter = 0;
+
+	/**
+	 * @param listener
+	 *            receives the fixes passing the filter
+	 */
+	public LocationFilter(LocationListener listener) {
+		this.listener = listener;
+	}
+
+	public void locationUpdated(LocationProvider provider, Location location) {
+		if (accept(location)) {
+			listener.locationUpdated(provider, location);
+		}
+	}
+
+	private synchronized boolean accept(Location location) {
+		QualifiedCoordinates coordinates = location.isValid() ? location
+				.getQualifiedCoordinates() : null;
+		if (coordinates == null
+				|| coordinates.getHorizontalAccuracy() > MAX_ACCURACY) {
+			inaccurate++;
+			return false;
+		}
+		double latitude = coordinates.getLatitude();
+		double longitude = coordinates.getLongitude();
+		long time = location.getTimestamp();
+		if (hasLast) {
+			long dt = time - lastTime;
+			if (dt <= 0) {
+				inaccurate++;
+				return false;
+			}
+			double distance = GeoUtil.getDistance(lastLatitude,
+					lastLongitude, latitude, longitude);
+			if (distance * 1000 > MAX_SPEED * dt && ++outliers < MAX_OUTLIERS) {
+				rejectedOutliers++;
+				return false;
+			}
+			outliers = 0;
+			float speed = location.getSpeed();
+			if (distance < JITTER_RADIUS
+					&& (Float.isNaN(speed) || speed < MOVING_SPEED)) {
+				jitter++;
+				return false;
+			}
+		}
+		hasLast = true;
+		lastLatitude = latitude;
+		lastLongitude = longitude;
+		lastTime = time;
+		passed++;
+		return true;
+	}
+
+	public void providerStateChanged(LocationProvider provider, int newState) {
+		listener.providerStateChanged(provider, newState);
+	}
+
+	/**
+	 * @return the number of fixes passed on
+	 */
+	public synchronized int getPassed() {
+		return passed;
+	}
+
+	/**
+	 * @return the number of fixes dropped for being invalid, inaccurate or
+	 *         out of order
+	 */
+	public synchronized int getInaccurate() {
+		return inaccurate;
+	}
+
+	/**
+	 * @return the number of fixes dropped as jumps
+	 */
+	public synchronized int getRejectedOutliers() {
+		return rejectedOutliers;
+	}
+
+	/**
+	 * @return the number of fixes dropped while standing
+	 */
+	public synchronized int getJitter() {
+		return jitter;
+	}
+
+	/**
+	 * @return the number of all dropped fixes
+	 */
+	public synchronized int getDropped() {
+		return inaccurate + rejectedOutliers + jitter;
+	}
+}
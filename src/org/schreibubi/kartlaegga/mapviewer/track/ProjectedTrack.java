@@ -0,0 +1,251 @@
+/**
+ * Copyright (C) 2009 joerg <schreibubi@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.schreibubi.kartlaegga.mapviewer.track;
+
+import org.schreibubi.kartlaegga.extend.Point2D;
+import org.schreibubi.kartlaegga.mapviewer.GeoUtil;
+import org.schreibubi.kartlaegga.mapviewer.tilefactories.TileFactoryInfo;
+
+/**
+ * The points of a track projected to pixels of the world bitmap, kept for
+ * every zoom level the track has been shown at. Projecting a point is
+ * expensive on CLDC, so each point is projected only once per zoom level:
+ * asking for a level projects just the points appended since it was last
+ * asked for. Levels which are not shown are not touched until they are asked
+ * for again.
+ * 
+ * Each level only keeps points which are at least {@link #MIN_DISTANCE}
+ * pixels apart at its zoom level, so the number of segments drawn is bounded
+ * by the pixels the track covers, not by the number of fixes. The last point
+ * of the track is always kept, it is replaced by the next one while it is too
+ * close to the point before it.
+ * 
+ * The points of a level are grouped into chunks of {@link #CHUNK_SIZE}
+ * segments with a bounding box each, so that drawing can skip the parts of
+ * the track outside the area being painted.
+ * 
+ * @author joerg
+ */
+public class ProjectedTrack {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * The minimum distance in pixels, along either axis, between the points
+	 * kept in a level
+	 */
+	public static final int MIN_DISTANCE = 2;
+
+	/**
+	 * The number of segments covered by one bounding box
+	 */
+	public static final int CHUNK_SIZE = 32;
+
+	/**
+	 * The projected points at one zoom level
+	 */
+	public static class Level {
+
+		private int[] x = new int[INITIAL_CAPACITY];
+
+		private int[] y = new int[INITIAL_CAPACITY];
+
+		private int size = 0;
+
+		/**
+		 * The number of track points projected so far
+		 */
+		private int projected = 0;
+
+		/**
+		 * Set if the last point is too close to the one before it and will
+		 * be replaced by the next point
+		 */
+		private boolean floating = false;
+
+		/**
+		 * The bounding boxes of the chunks. A chunk covers the segments
+		 * starting at its points, so it includes the first point of the next
+		 * chunk. A replaced last point may leave a box a little too large.
+		 */
+		private int[] minX = new int[INITIAL_CAPACITY / CHUNK_SIZE + 1];
+		private int[] minY = new int[minX.length];
+		private int[] maxX = new int[minX.length];
+		private int[] maxY = new int[minX.length];
+
+		/**
+		 * @return the number of points
+		 */
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * @return the number of chunks
+		 */
+		public int getChunkCount() {
+			return (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		}
+
+		/**
+		 * @return true if the bounding box of the chunk intersects the given
+		 *         area in pixels of the world bitmap
+		 */
+		public boolean chunkIntersects(int chunk, int x1, int y1, int x2,
+				int y2) {
+			return minX[chunk] < x2 && maxX[chunk] >= x1 && minY[chunk] < y2
+					&& maxY[chunk] >= y1;
+		}
+
+		/**
+		 * @return the x coordinate of the point in pixels of the world bitmap
+		 */
+		public int getX(int i) {
+			return x[i];
+		}
+
+		/**
+		 * @return the y coordinate of the point in pixels of the world bitmap
+		 */
+		public int getY(int i) {
+			return y[i];
+		}
+
+		void add(int px, int py) {
+			if (floating) {
+				size--;
+			}
+			if (size == x.length) {
+				int[] nx = new int[size * 2];
+				int[] ny = new int[size * 2];
+				System.arraycopy(x, 0, nx, 0, size);
+				System.arraycopy(y, 0, ny, 0, size);
+				x = nx;
+				y = ny;
+			}
+			x[size] = px;
+			y[size] = py;
+			int chunk = size / CHUNK_SIZE;
+			if (chunk == minX.length) {
+				minX = grow(minX);
+				minY = grow(minY);
+				maxX = grow(maxX);
+				maxY = grow(maxY);
+			}
+			if (size % CHUNK_SIZE == 0) {
+				minX[chunk] = maxX[chunk] = px;
+				minY[chunk] = maxY[chunk] = py;
+				if (chunk > 0) {
+					include(chunk - 1, px, py);
+				}
+			} else {
+				include(chunk, px, py);
+			}
+			size++;
+			floating = size >= 2
+					&& Math.abs(px - x[size - 2]) < MIN_DISTANCE
+					&& Math.abs(py - y[size - 2]) < MIN_DISTANCE;
+		}
+
+		private void include(int chunk, int px, int py) {
+			minX[chunk] = Math.min(minX[chunk], px);
+			minY[chunk] = Math.min(minY[chunk], py);
+			maxX[chunk] = Math.max(maxX[chunk], px);
+			maxY[chunk] = Math.max(maxY[chunk], py);
+		}
+
+		private static int[] grow(int[] a) {
+			int[] b = new int[a.length * 2];
+			System.arraycopy(a, 0, b, 0, a.length);
+			return b;
+		}
+
+		void clear() {
+			size = 0;
+			projected = 0;
+			floating = false;
+		}
+	}
+
+	private final TileFactoryInfo info;
+
+	/**
+	 * The levels indexed by zoom, created when first asked for
+	 */
+	private final Level[] levels;
+
+	private TrackStore source = null;
+
+	private TrackStore.Cursor cursor = null;
+
+	private final Point2D scratch = new Point2D(0, 0);
+
+	/**
+	 * @param info
+	 *            the map the track is projected on
+	 */
+	public ProjectedTrack(TileFactoryInfo info) {
+		this.info = info;
+		levels = new Level[info.getTotalMapZoom() + 1];
+	}
+
+	/**
+	 * @return the map the track is projected on
+	 */
+	public TileFactoryInfo getInfo() {
+		return info;
+	}
+
+	/**
+	 * Brings the given zoom level up to date with the track and returns it.
+	 * A different track starts all levels from scratch.
+	 * 
+	 * @param track
+	 *            the fixes
+	 * @param zoom
+	 *            the zoom level
+	 * @return the projected points
+	 */
+	public synchronized Level getLevel(TrackSnapshot track, int zoom) {
+		if (track.store != source) {
+			source = track.store;
+			cursor = source.cursor();
+			for (int i = 0; i < levels.length; i++) {
+				if (levels[i] != null) {
+					levels[i].clear();
+				}
+			}
+		}
+		Level level = levels[zoom];
+		if (level == null) {
+			level = new Level();
+			levels[zoom] = level;
+		}
+		int n = track.size();
+		if (n <= level.projected) {
+			// an older snapshot of the same track is already covered
+			return level;
+		}
+		cursor.moveTo(level.projected);
+		while (cursor.getIndex() + 1 < n && cursor.next()) {
+			GeoUtil.getBitmapCoordinate(cursor.getLatitude(), cursor
+					.getLongitude(), zoom, info, scratch);
+			level.add((int) scratch.x, (int) scratch.y);
+		}
+		level.projected = n;
+		return level;
+	}
+}
@@ -0,0 +1,366 @@
+/**
+ * Copyright (C) 2009 joerg <schreibubi@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.schreibubi.kartlaegga.mapviewer.track;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.microedition.io.Connector;
+import javax.microedition.io.file.FileConnection;
+
+/**
+ * Writes the fixes of a track to a file as they arrive, so that a workout
+ * survives a crash or an empty battery.
+ * 
+ * The file starts with a short header followed by one record of
+ * {@link #RECORD_SIZE} bytes per fix, ending with a checksum. Fixes are only
+ * encoded into a buffer by the thread reporting them; a thread of its own
+ * appends the buffer to the file after {@link #FLUSH_RECORDS} fixes or
+ * {@link #FLUSH_INTERVAL} ms, whichever comes first.
+ * 
+ * The header tells whether the journal was closed. Opening a journal which
+ * was not closed, because the application died, reads the records back and
+ * cuts off a record torn by the crash. A closed journal belongs to a finished
+ * workout and is emptied instead.
+ * 
+ * @author joerg
+ */
+public class TrackJournal implements TrackListener, Runnable {
+
+	/**
+	 * The size of a fix in the file: latitude, longitude, altitude, speed,
+	 * course, time and checksum
+	 */
+	public static final int RECORD_SIZE = 32;
+
+	/**
+	 * The number of fixes which are written together
+	 */
+	public static final int FLUSH_RECORDS = 16;
+
+	/**
+	 * The longest time in ms a fix waits to be written
+	 */
+	public static final long FLUSH_INTERVAL = 5000;
+
+	private static final int MAGIC = 0x4b544a32;
+
+	private static final int HEADER_SIZE = 12;
+
+	/**
+	 * The position of the state in the header
+	 */
+	private static final int STATE_OFFSET = 8;
+
+	private static final int OPEN = 0;
+
+	private static final int CLOSED = 1;
+
+	private static final int PAYLOAD_SIZE = RECORD_SIZE - 4;
+
+	private final FileConnection file;
+
+	private OutputStream out;
+
+	/**
+	 * The encoded fixes not yet handed to the writer
+	 */
+	private byte[] pending = new byte[2 * FLUSH_RECORDS * RECORD_SIZE];
+
+	private int pendingLength = 0;
+
+	/**
+	 * The buffer the writer is writing, swapped with pending
+	 */
+	private byte[] writing = new byte[pending.length];
+
+	private boolean resetPending = false;
+
+	private boolean closed = false;
+
+	/**
+	 * Set by the writer once the file is closed
+	 */
+	private boolean done = false;
+
+	private TrackJournal(FileConnection file) {
+		this.file = file;
+	}
+
+	/**
+	 * @return the url of the journal in the private directory of the
+	 *         application, or null if the device has no accessible file
+	 *         system
+	 */
+	public static String getDefaultUrl() {
+		if (System.getProperty("microedition.io.file.FileConnection.version") == null) {
+			return null;
+		}
+		String dir = System.getProperty("fileconn.dir.private");
+		return dir == null ? null : dir + "track.bin";
+	}
+
+	/**
+	 * Opens the journal, creating it if necessary. If the journal was not
+	 * closed the fixes found in it are appended to the store, otherwise it is
+	 * emptied. New fixes are appended to the journal once it
+	 * is added as listener to the recorder.
+	 * 
+	 * @param url
+	 *            a file url
+	 * @param store
+	 *            receives the recovered fixes
+	 * @return the journal, with its writer started
+	 * @throws IOException
+	 *             if the file is not accessible
+	 */
+	public static TrackJournal open(String url, TrackStore store)
+			throws IOException {
+		FileConnection fc = (FileConnection) Connector.open(url,
+				Connector.READ_WRITE);
+		TrackJournal journal = new TrackJournal(fc);
+		try {
+			journal.recover(store);
+		} catch (IOException e) {
+			fc.close();
+			throw e;
+		}
+		new Thread(journal).start();
+		return journal;
+	}
+
+	/**
+	 * Reads the valid records unless the journal was closed, truncates the
+	 * file after them, marks it as open and opens it for appending.
+	 */
+	private void recover(TrackStore store) throws IOException {
+		long length = 0;
+		if (file.exists()) {
+			long size = file.fileSize();
+			DataInputStream in = file.openDataInputStream();
+			try {
+				if (size >= HEADER_SIZE && in.readInt() == MAGIC
+						&& in.readInt() == RECORD_SIZE) {
+					length = HEADER_SIZE;
+					boolean closed = in.readInt() == CLOSED;
+					byte[] record = new byte[RECORD_SIZE];
+					while (!closed && length + RECORD_SIZE <= size) {
+						in.readFully(record);
+						if (!decode(record, store)) {
+							break;
+						}
+						length += RECORD_SIZE;
+					}
+				}
+			} finally {
+				in.close();
+			}
+			if (length < size) {
+				file.truncate(length);
+			}
+		} else {
+			file.create();
+		}
+		if (length == 0) {
+			out = file.openOutputStream();
+			byte[] header = new byte[HEADER_SIZE];
+			putInt(header, 0, MAGIC);
+			putInt(header, 4, RECORD_SIZE);
+			putInt(header, STATE_OFFSET, OPEN);
+			out.write(header);
+			out.flush();
+		} else {
+			writeState(OPEN);
+			out = file.openOutputStream(length);
+		}
+	}
+
+	/**
+	 * Overwrites the state in the header, the append stream must not be open.
+	 */
+	private void writeState(int state) throws IOException {
+		byte[] b = new byte[4];
+		putInt(b, 0, state);
+		OutputStream o = file.openOutputStream(STATE_OFFSET);
+		try {
+			o.write(b);
+			o.flush();
+		} finally {
+			o.close();
+		}
+	}
+
+	public void pointsAppended(TrackSnapshot track, int from, int to) {
+		TrackStore store = track.store;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			int needed = pendingLength + (to - from) * RECORD_SIZE;
+			if (needed > pending.length) {
+				// the writer is falling behind, keep the fixes anyway
+				byte[] b = new byte[Math.max(needed, pending.length * 2)];
+				System.arraycopy(pending, 0, b, 0, pendingLength);
+				pending = b;
+			}
+			for (int i = from; i < to; i++) {
+				encode(store, i, pending, pendingLength);
+				pendingLength += RECORD_SIZE;
+			}
+			if (pendingLength >= FLUSH_RECORDS * RECORD_SIZE) {
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Empties the journal, the fixes of the new track follow.
+	 */
+	public synchronized void trackReset(TrackSnapshot track) {
+		pendingLength = 0;
+		resetPending = true;
+		pointsAppended(track, 0, track.size());
+		notifyAll();
+	}
+
+	/**
+	 * Writes the remaining fixes, marks the journal as closed and closes the
+	 * file, returning once the writer is finished, so the journal can be
+	 * opened again right away.
+	 * Fixes reported afterwards are ignored.
+	 */
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+		while (!done) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+
+	public void run() {
+		try {
+			write();
+		} finally {
+			synchronized (this) {
+				done = true;
+				notifyAll();
+			}
+		}
+	}
+
+	private void write() {
+		while (true) {
+			byte[] data;
+			int length;
+			boolean reset;
+			synchronized (this) {
+				if (!closed && !resetPending
+						&& pendingLength < FLUSH_RECORDS * RECORD_SIZE) {
+					try {
+						wait(FLUSH_INTERVAL);
+					} catch (InterruptedException e) {
+					}
+				}
+				if (closed && pendingLength == 0 && !resetPending) {
+					break;
+				}
+				data = pending;
+				length = pendingLength;
+				reset = resetPending;
+				if (writing.length < pending.length) {
+					writing = new byte[pending.length];
+				}
+				pending = writing;
+				writing = data;
+				pendingLength = 0;
+				resetPending = false;
+			}
+			try {
+				if (reset) {
+					out.close();
+					file.truncate(HEADER_SIZE);
+					out = file.openOutputStream(HEADER_SIZE);
+				}
+				if (length > 0) {
+					out.write(data, 0, length);
+					out.flush();
+				}
+			} catch (IOException e) {
+				System.out.println("could not write track journal: " + e);
+			}
+		}
+		try {
+			out.close();
+			writeState(CLOSED);
+			file.close();
+		} catch (IOException e) {
+			System.out.println("could not close track journal: " + e);
+		}
+	}
+
+	private static void encode(TrackStore store, int i, byte[] b, int off) {
+		putInt(b, off, store.getFixedLatitude(i));
+		putInt(b, off + 4, store.getFixedLongitude(i));
+		putInt(b, off + 8, Float.floatToIntBits(store.getAltitude(i)));
+		putInt(b, off + 12, Float.floatToIntBits(store.getSpeed(i)));
+		putInt(b, off + 16, Float.floatToIntBits(store.getCourse(i)));
+		long time = store.getTime(i);
+		putInt(b, off + 20, (int) (time >>> 32));
+		putInt(b, off + 24, (int) time);
+		putInt(b, off + PAYLOAD_SIZE, checksum(b, off));
+	}
+
+	/**
+	 * @return false if the record is damaged
+	 */
+	private static boolean decode(byte[] b, TrackStore store) {
+		if (getInt(b, PAYLOAD_SIZE) != checksum(b, 0)) {
+			return false;
+		}
+		long time = ((long) getInt(b, 20) << 32) | (getInt(b, 24) & 0xffffffffL);
+		store.appendFixed(getInt(b, 0), getInt(b, 4), Float
+				.intBitsToFloat(getInt(b, 8)), Float.intBitsToFloat(getInt(b,
+				12)), Float.intBitsToFloat(getInt(b, 16)), time);
+		return true;
+	}
+
+	/**
+	 * FNV-1a over the payload of a record
+	 */
+	private static int checksum(byte[] b, int off) {
+		int h = 0x811c9dc5;
+		for (int i = off; i < off + PAYLOAD_SIZE; i++) {
+			h = (h ^ (b[i] & 0xff)) * 0x01000193;
+		}
+		return h;
+	}
+
+	private static void putInt(byte[] b, int off, int v) {
+		b[off] = (byte) (v >>> 24);
+		b[off + 1] = (byte) (v >>> 16);
+		b[off + 2] = (byte) (v >>> 8);
+		b[off + 3] = (byte) v;
+	}
+
+	private static int getInt(byte[] b, int off) {
+		return (b[off] << 24) | ((b[off + 1] & 0xff) << 16)
+				| ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+	}
+}
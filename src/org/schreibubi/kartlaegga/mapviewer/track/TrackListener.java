@@ -15,9 +15,27 @@
  */
 package org.schreibubi.kartlaegga.mapviewer.track;
 
-import java.util.Vector;
-
 public interface TrackListener {
 
-	public void trackChanged(Vector track);
+	/**
+	 * Called whenever fixes were appended to the track.
+	 * 
+	 * @param track
+	 *            the track including the new fixes
+	 * @param from
+	 *            the index of the first new fix
+	 * @param to
+	 *            the index after the last new fix, equal to the size of the
+	 *            track
+	 */
+	public void pointsAppended(TrackSnapshot track, int from, int to);
+
+	/**
+	 * Called when the track was replaced, e.g. by a new empty one. All state
+	 * derived from the fixes seen so far is invalid.
+	 * 
+	 * @param track
+	 *            the new track
+	 */
+	public void trackReset(TrackSnapshot track);
 }
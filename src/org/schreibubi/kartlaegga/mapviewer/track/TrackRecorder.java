@@ -24,12 +24,21 @@ import javax.microedition.location.LocationProvider;
 
 public class TrackRecorder implements LocationListener {
 
-	private Vector track = new Vector();
+	private TrackStore track;
 
 	private Vector trackListenerList = new Vector();
 
 	public TrackRecorder() {
+		this(new TrackStore());
+	}
 
+	/**
+	 * @param track
+	 *            the fixes to continue, e.g. recovered from a
+	 *            {@link TrackJournal}
+	 */
+	public TrackRecorder(TrackStore track) {
+		this.track = track;
 	}
 
 	public void addTrackListener(TrackListener tl) {
@@ -40,26 +49,48 @@ public class TrackRecorder implements LocationListener {
 		trackListenerList.removeElement(tl);
 	}
 
-	public void fireTrackChanged() {
+	/**
+	 * @return the fixes recorded so far
+	 */
+	public synchronized TrackSnapshot getTrack() {
+		return track.snapshot();
+	}
+
+	/**
+	 * Starts a new empty track. Snapshots of the old one stay valid.
+	 */
+	public synchronized void reset() {
+		track = new TrackStore();
+		TrackSnapshot snapshot = track.snapshot();
 		for (int i = 0; i < trackListenerList.size(); i++) {
 			((TrackListener) trackListenerList.elementAt(i))
-					.trackChanged(track);
+					.trackReset(snapshot);
 		}
+	}
 
+	/**
+	 * Tells the listeners about the fixes appended since the given index.
+	 */
+	public void fireTrackChanged(int from) {
+		TrackSnapshot snapshot = track.snapshot();
+		for (int i = 0; i < trackListenerList.size(); i++) {
+			((TrackListener) trackListenerList.elementAt(i)).pointsAppended(
+					snapshot, from, snapshot.size());
+		}
 	}
 
-	public void locationUpdated(LocationProvider provider, Location location) {
+	public synchronized void locationUpdated(LocationProvider provider, Location location) {
 		Coordinates coordinates = location.getQualifiedCoordinates();
 		double latitude = coordinates.getLatitude();
 		double longitude = coordinates.getLongitude();
 		float altitude = coordinates.getAltitude();
 		float sp = location.getSpeed();
-		double course = location.getCourse();
+		float course = location.getCourse();
 		long time=location.getTimestamp();
 
-		TrackPoint tp=new TrackPoint(latitude,longitude,altitude,sp,course,time);
-		track.addElement(tp);
-		fireTrackChanged();
+		int from = track.size();
+		track.append(latitude, longitude, altitude, sp, course, time);
+		fireTrackChanged(from);
 	}
 
 	public void providerStateChanged(LocationProvider provider, int newState) {
@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2009 joerg <schreibubi@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.schreibubi.kartlaegga.mapviewer.track;
+
+/**
+ * An unchanging view of the first fixes of a track. As fixes are only ever
+ * appended to a {@link TrackStore}, the view stays the same while the track
+ * grows, and it may be read on any thread.
+ * 
+ * @author joerg
+ */
+public class TrackSnapshot {
+
+	final TrackStore store;
+
+	private final int size;
+
+	TrackSnapshot(TrackStore store, int size) {
+		this.store = store;
+		this.size = size;
+	}
+
+	/**
+	 * @return the number of fixes in this view
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return a new cursor placed before the first fix, which stops at the
+	 *         end of this view
+	 */
+	public TrackStore.Cursor cursor() {
+		return store.cursor(size);
+	}
+
+	/**
+	 * @return true if both views show the same track, one possibly being
+	 *         longer than the other
+	 */
+	public boolean isSameTrack(TrackSnapshot other) {
+		return other != null && store == other.store;
+	}
+
+	public double getLatitude(int i) {
+		check(i);
+		return store.getLatitude(i);
+	}
+
+	public double getLongitude(int i) {
+		check(i);
+		return store.getLongitude(i);
+	}
+
+	public float getAltitude(int i) {
+		check(i);
+		return store.getAltitude(i);
+	}
+
+	public float getSpeed(int i) {
+		check(i);
+		return store.getSpeed(i);
+	}
+
+	public float getCourse(int i) {
+		check(i);
+		return store.getCourse(i);
+	}
+
+	public long getTime(int i) {
+		check(i);
+		return store.getTime(i);
+	}
+
+	/**
+	 * @return the fix as a new object
+	 */
+	public TrackPoint getPoint(int i) {
+		check(i);
+		return store.getPoint(i);
+	}
+
+	private void check(int i) {
+		if (i < 0 || i >= size) {
+			throw new IndexOutOfBoundsException();
+		}
+	}
+}
@@ -0,0 +1,269 @@
+/**
+ * Copyright (C) 2009 joerg <schreibubi@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.schreibubi.kartlaegga.mapviewer.track;
+
+/**
+ * The fixes of a track stored column by column in primitive arrays, about 24
+ * bytes per fix instead of a {@link TrackPoint} object each.
+ * 
+ * Latitude and longitude are kept as fixed point numbers in units of 1e-7
+ * degrees, which is about 1cm, and the time as milliseconds since the first
+ * fix. The columns grow in chunks of {@link #CHUNK_SIZE} fixes, so appending
+ * never copies the fixes already stored.
+ * 
+ * Fixes are only ever appended, by a single thread. Readers on other threads
+ * may access all fixes below the {@link #size()} they read, or use a
+ * {@link #snapshot()}.
+ * 
+ * @author joerg
+ */
+public class TrackStore {
+
+	/**
+	 * The number of fixes per chunk, a power of two
+	 */
+	public static final int CHUNK_SIZE = 256;
+
+	private static final int CHUNK_SHIFT = 8;
+
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private static final double FIXED_POINT = 1e7;
+
+	/**
+	 * A position in the track for reading the fixes one after the other
+	 * without creating objects for them. A cursor can be moved to any index
+	 * and reused.
+	 */
+	public class Cursor {
+
+		private final int limit;
+
+		private int index = -1;
+
+		private int chunk;
+
+		private int offset;
+
+		Cursor(int limit) {
+			this.limit = limit;
+		}
+
+		/**
+		 * Positions the cursor so that the next call of {@link #next()} moves
+		 * to the given index.
+		 */
+		public void moveTo(int index) {
+			this.index = index - 1;
+		}
+
+		/**
+		 * Moves to the next fix.
+		 * 
+		 * @return false if there is no further fix
+		 */
+		public boolean next() {
+			if (index + 1 >= size || index + 1 >= limit) {
+				return false;
+			}
+			index++;
+			chunk = index >> CHUNK_SHIFT;
+			offset = index & CHUNK_MASK;
+			return true;
+		}
+
+		/**
+		 * @return the index of the current fix
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		public double getLatitude() {
+			return latitudes[chunk][offset] / FIXED_POINT;
+		}
+
+		public double getLongitude() {
+			return longitudes[chunk][offset] / FIXED_POINT;
+		}
+
+		public float getAltitude() {
+			return altitudes[chunk][offset];
+		}
+
+		public float getSpeed() {
+			return speeds[chunk][offset];
+		}
+
+		public float getCourse() {
+			return courses[chunk][offset];
+		}
+
+		public long getTime() {
+			return startTime + times[chunk][offset];
+		}
+	}
+
+	private int[][] latitudes = new int[4][];
+	private int[][] longitudes = new int[4][];
+	private float[][] altitudes = new float[4][];
+	private float[][] speeds = new float[4][];
+	private float[][] courses = new float[4][];
+	private int[][] times = new int[4][];
+
+	private long startTime;
+
+	private volatile int size = 0;
+
+	/**
+	 * @return the number of fixes
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return a new cursor placed before the first fix, which also reaches
+	 *         the fixes appended later
+	 */
+	public Cursor cursor() {
+		return new Cursor(Integer.MAX_VALUE);
+	}
+
+	Cursor cursor(int limit) {
+		return new Cursor(limit);
+	}
+
+	/**
+	 * @return an unchanging view of the fixes stored so far
+	 */
+	public TrackSnapshot snapshot() {
+		return new TrackSnapshot(this, size);
+	}
+
+	/**
+	 * Appends a fix.
+	 * 
+	 * @param time
+	 *            the time of the fix in ms, at most 24 days after the first
+	 */
+	public void append(double latitude, double longitude, float altitude,
+			float speed, float course, long time) {
+		appendFixed(toFixed(latitude), toFixed(longitude), altitude, speed,
+				course, time);
+	}
+
+	/**
+	 * Appends a fix with latitude and longitude in units of 1e-7 degrees.
+	 */
+	void appendFixed(int latitude, int longitude, float altitude,
+			float speed, float course, long time) {
+		int n = size;
+		int chunk = n >> CHUNK_SHIFT;
+		int offset = n & CHUNK_MASK;
+		if (n == 0) {
+			startTime = time;
+		}
+		if (offset == 0) {
+			addChunk(chunk);
+		}
+		latitudes[chunk][offset] = latitude;
+		longitudes[chunk][offset] = longitude;
+		altitudes[chunk][offset] = altitude;
+		speeds[chunk][offset] = speed;
+		courses[chunk][offset] = course;
+		times[chunk][offset] = (int) (time - startTime);
+		// publish the fix only after it is written
+		size = n + 1;
+	}
+
+	public double getLatitude(int i) {
+		return latitudes[i >> CHUNK_SHIFT][i & CHUNK_MASK] / FIXED_POINT;
+	}
+
+	public double getLongitude(int i) {
+		return longitudes[i >> CHUNK_SHIFT][i & CHUNK_MASK] / FIXED_POINT;
+	}
+
+	public float getAltitude(int i) {
+		return altitudes[i >> CHUNK_SHIFT][i & CHUNK_MASK];
+	}
+
+	public float getSpeed(int i) {
+		return speeds[i >> CHUNK_SHIFT][i & CHUNK_MASK];
+	}
+
+	public float getCourse(int i) {
+		return courses[i >> CHUNK_SHIFT][i & CHUNK_MASK];
+	}
+
+	public long getTime(int i) {
+		return startTime + times[i >> CHUNK_SHIFT][i & CHUNK_MASK];
+	}
+
+	/**
+	 * @return the latitude in units of 1e-7 degrees as stored
+	 */
+	int getFixedLatitude(int i) {
+		return latitudes[i >> CHUNK_SHIFT][i & CHUNK_MASK];
+	}
+
+	/**
+	 * @return the longitude in units of 1e-7 degrees as stored
+	 */
+	int getFixedLongitude(int i) {
+		return longitudes[i >> CHUNK_SHIFT][i & CHUNK_MASK];
+	}
+
+	/**
+	 * @return the fix as a new object
+	 */
+	public TrackPoint getPoint(int i) {
+		return new TrackPoint(getLatitude(i), getLongitude(i), getAltitude(i),
+				getSpeed(i), getCourse(i), getTime(i));
+	}
+
+	private static int toFixed(double degrees) {
+		return (int) Math.floor(degrees * FIXED_POINT + 0.5);
+	}
+
+	/**
+	 * Allocates the arrays of a chunk. The chunk tables are replaced by
+	 * larger copies when full, readers still holding the old ones only need
+	 * the chunks they already contain.
+	 */
+	private void addChunk(int chunk) {
+		if (chunk == latitudes.length) {
+			latitudes = (int[][]) grow(latitudes, new int[chunk * 2][]);
+			longitudes = (int[][]) grow(longitudes, new int[chunk * 2][]);
+			altitudes = (float[][]) grow(altitudes, new float[chunk * 2][]);
+			speeds = (float[][]) grow(speeds, new float[chunk * 2][]);
+			courses = (float[][]) grow(courses, new float[chunk * 2][]);
+			times = (int[][]) grow(times, new int[chunk * 2][]);
+		}
+		latitudes[chunk] = new int[CHUNK_SIZE];
+		longitudes[chunk] = new int[CHUNK_SIZE];
+		altitudes[chunk] = new float[CHUNK_SIZE];
+		speeds[chunk] = new float[CHUNK_SIZE];
+		courses[chunk] = new float[CHUNK_SIZE];
+		times[chunk] = new int[CHUNK_SIZE];
+	}
+
+	private static Object[] grow(Object[] from, Object[] to) {
+		System.arraycopy(from, 0, to, 0, from.length);
+		return to;
+	}
+}
@@ -0,0 +1,247 @@
+/**
+ * Copyright (C) 2009 joerg <schreibubi@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.schreibubi.kartlaegga.mapviewer.track;
+
+import org.schreibubi.kartlaegga.mapviewer.GeoUtil;
+
+/**
+ * Keeps the statistics of a workout up to date while the track is recorded.
+ * 
+ * Every new fix is only compared with the previous one, so the cost per fix
+ * is constant however long the track gets. The track is only walked from the
+ * start when it is replaced, e.g. by one recovered from a
+ * {@link TrackJournal}.
+ * 
+ * A step between two fixes counts as moving if its speed reaches
+ * {@link #MOVING_SPEED}. Only moving steps add to distance and moving time,
+ * which keeps the drift of a standing receiver out of the totals. Elevation
+ * gain and loss are only counted once the altitude moved
+ * {@link #ELEVATION_HYSTERESIS} meters away from the last turning point, so
+ * the noise of the altitude does not add up.
+ * 
+ * @author joerg
+ */
+public class WorkoutStatistics implements TrackListener {
+
+	/**
+	 * The slowest speed in m/s counted as moving
+	 */
+	public static final double MOVING_SPEED = 0.5;
+
+	/**
+	 * The change in meters of the altitude needed to count as gain or loss
+	 */
+	public static final float ELEVATION_HYSTERESIS = 5;
+
+	/**
+	 * The length of a split in meters
+	 */
+	public static final int SPLIT_DISTANCE = 1000;
+
+	/**
+	 * The time constant in ms the current speed is smoothed with
+	 */
+	private static final double SMOOTHING_TIME = 10000;
+
+	private int count = 0;
+
+	private double lastLatitude;
+
+	private double lastLongitude;
+
+	private long lastTime;
+
+	private double distance = 0;
+
+	private long movingTime = 0;
+
+	private double currentSpeed = 0;
+
+	/**
+	 * The altitude of the last turning point, NaN before the first known
+	 * altitude
+	 */
+	private float elevationAnchor = Float.NaN;
+
+	private float elevationGain = 0;
+
+	private float elevationLoss = 0;
+
+	/**
+	 * The moving time at the end of each completed split
+	 */
+	private long[] splitTimes = new long[16];
+
+	private int splitCount = 0;
+
+	public synchronized void pointsAppended(TrackSnapshot track, int from,
+			int to) {
+		for (int i = from; i < to; i++) {
+			add(track.getLatitude(i), track.getLongitude(i), track
+					.getAltitude(i), track.getTime(i));
+		}
+	}
+
+	public synchronized void trackReset(TrackSnapshot track) {
+		count = 0;
+		distance = 0;
+		movingTime = 0;
+		currentSpeed = 0;
+		elevationAnchor = Float.NaN;
+		elevationGain = 0;
+		elevationLoss = 0;
+		splitCount = 0;
+		pointsAppended(track, 0, track.size());
+	}
+
+	private void add(double latitude, double longitude, float altitude,
+			long time) {
+		if (count++ > 0) {
+			long dt = time - lastTime;
+			if (dt <= 0) {
+				return;
+			}
+			double step = GeoUtil.getDistance(lastLatitude, lastLongitude,
+					latitude, longitude);
+			double speed = step * 1000 / dt;
+			if (speed >= MOVING_SPEED) {
+				addSplits(step, dt);
+				distance += step;
+				movingTime += dt;
+			} else {
+				speed = 0;
+			}
+			double weight = dt / (SMOOTHING_TIME + dt);
+			currentSpeed += (speed - currentSpeed) * weight;
+		}
+		lastLatitude = latitude;
+		lastLongitude = longitude;
+		lastTime = time;
+		addAltitude(altitude);
+	}
+
+	/**
+	 * Records the splits completed within a step, the time of each is
+	 * interpolated along the step.
+	 */
+	private void addSplits(double step, long dt) {
+		double next = (splitCount + 1) * (double) SPLIT_DISTANCE;
+		while (distance + step >= next) {
+			if (splitCount == splitTimes.length) {
+				long[] t = new long[splitCount * 2];
+				System.arraycopy(splitTimes, 0, t, 0, splitCount);
+				splitTimes = t;
+			}
+			splitTimes[splitCount++] = movingTime
+					+ (long) ((next - distance) / step * dt);
+			next += SPLIT_DISTANCE;
+		}
+	}
+
+	private void addAltitude(float altitude) {
+		if (Float.isNaN(altitude)) {
+			return;
+		}
+		if (Float.isNaN(elevationAnchor)) {
+			elevationAnchor = altitude;
+		} else if (altitude - elevationAnchor >= ELEVATION_HYSTERESIS) {
+			elevationGain += altitude - elevationAnchor;
+			elevationAnchor = altitude;
+		} else if (elevationAnchor - altitude >= ELEVATION_HYSTERESIS) {
+			elevationLoss += elevationAnchor - altitude;
+			elevationAnchor = altitude;
+		}
+	}
+
+	/**
+	 * @return the distance moved in meters
+	 */
+	public synchronized double getDistance() {
+		return distance;
+	}
+
+	/**
+	 * @return the time spent moving in ms
+	 */
+	public synchronized long getMovingTime() {
+		return movingTime;
+	}
+
+	/**
+	 * @return the mean speed while moving in m/s
+	 */
+	public synchronized double getAverageSpeed() {
+		return movingTime == 0 ? 0 : distance * 1000 / movingTime;
+	}
+
+	/**
+	 * @return the speed of the last few seconds in m/s
+	 */
+	public synchronized double getCurrentSpeed() {
+		return currentSpeed;
+	}
+
+	/**
+	 * @return the mean pace while moving in seconds per km, 0 if there was
+	 *         no movement yet
+	 */
+	public synchronized int getAveragePace() {
+		return pace(getAverageSpeed());
+	}
+
+	/**
+	 * @return the pace of the last few seconds in seconds per km, 0 when
+	 *         standing
+	 */
+	public synchronized int getCurrentPace() {
+		return pace(currentSpeed);
+	}
+
+	private static int pace(double speed) {
+		return speed < MOVING_SPEED ? 0 : (int) (1000 / speed + 0.5);
+	}
+
+	/**
+	 * @return the number of completed splits
+	 */
+	public synchronized int getSplitCount() {
+		return splitCount;
+	}
+
+	/**
+	 * @return the moving time in ms the split with the given index took
+	 */
+	public synchronized long getSplitTime(int i) {
+		if (i < 0 || i >= splitCount) {
+			throw new IndexOutOfBoundsException();
+		}
+		return splitTimes[i] - (i == 0 ? 0 : splitTimes[i - 1]);
+	}
+
+	/**
+	 * @return the climbed meters
+	 */
+	public synchronized float getElevationGain() {
+		return elevationGain;
+	}
+
+	/**
+	 * @return the descended meters
+	 */
+	public synchronized float getElevationLoss() {
+		return elevationLoss;
+	}
+}